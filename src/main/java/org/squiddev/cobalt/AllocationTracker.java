@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+/**
+ * Tracks an approximation of the memory allocated by scripts running on a {@link LuaState}, and raises an
+ * "allocation limit exceeded" error once this passes a limit.
+ *
+ * This is an allocation budget rather than a measure of live memory: the JVM gives us no cheap way to know when an
+ * object is collected. Instead, this counts bytes as tables grow (and refunds them as tables shrink), and as strings
+ * and closures are created by the interpreter and the core libraries. Hosts which want to bound the memory of
+ * long-running scripts should {@link #reset()} the tracker at suitable points, for instance at the start of every
+ * event handler.
+ *
+ * Sizes are estimates based on a 64-bit JVM with compressed pointers. Table storage is counted in bulk whenever
+ * a table resizes, rather than on every write. Tables created outside the tracker (for instance by Java library
+ * functions, or the {@code arg} table of a vararg function) are charged for and tracked the first time a script writes
+ * to them, see {@link #check(LuaValue)}.
+ *
+ * A tracker should only be used by one thread at a time, the same as its {@link LuaState}.
+ *
+ * @see LuaState.Builder#allocationLimit(long)
+ */
+public final class AllocationTracker {
+	static final int TABLE_BYTES = 64;
+	static final int ARRAY_SLOT_BYTES = 4;
+	static final int HASH_SLOT_BYTES = 16;
+	static final int STRING_BYTES = 40;
+	static final int CLOSURE_BYTES = 32;
+	static final int UPVALUE_BYTES = 24;
+
+	private final long limit;
+
+	private long tableBytes;
+	private long stringBytes;
+	private long closureBytes;
+	private long total;
+
+	public AllocationTracker(long limit) {
+		if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+		this.limit = limit;
+	}
+
+	/**
+	 * Create a new table whose storage is tracked by this instance.
+	 *
+	 * @param narray The size of the array part.
+	 * @param nhash  The size of the hash part.
+	 * @return The new table.
+	 * @throws LuaError If this allocation exceeds the limit.
+	 */
+	public LuaTable newTable(int narray, int nhash) throws LuaError {
+		// Check the limit before allocating, as the table may be very large.
+		allocateTable(TABLE_BYTES + (long) narray * ARRAY_SLOT_BYTES + (long) nhash * HASH_SLOT_BYTES);
+		check();
+
+		LuaTable table = new LuaTable(narray, nhash);
+		table.allocations = this;
+		return table;
+	}
+
+	/**
+	 * Record that a table's storage has changed size. This does not check the limit, as tables are resized in places
+	 * where we cannot throw {@link LuaError}s. Instead, the interpreter and the library functions which write to tables
+	 * call {@link #check(LuaValue)} afterwards.
+	 *
+	 * @param bytes The number of bytes allocated, or a negative number if the table has shrunk.
+	 */
+	void allocateTable(long bytes) {
+		tableBytes += bytes;
+		total += bytes;
+	}
+
+	/**
+	 * Record that a string has been created.
+	 *
+	 * @param length The length of the string.
+	 * @throws LuaError If this allocation exceeds the limit.
+	 */
+	public void allocateString(int length) throws LuaError {
+		long bytes = STRING_BYTES + (long) length;
+		stringBytes += bytes;
+		total += bytes;
+		check();
+	}
+
+	/**
+	 * Record that a string's contents have been allocated. Like {@link #allocateTable(long)}, this does not check the
+	 * limit, as it is used when flattening a {@link LuaRope}, which may happen anywhere a string is read.
+	 *
+	 * @param bytes The number of bytes allocated.
+	 */
+	void allocateStringBytes(long bytes) {
+		stringBytes += bytes;
+		total += bytes;
+	}
+
+	/**
+	 * Record that a closure has been created.
+	 *
+	 * @param upvalues The number of upvalues this closure has.
+	 * @throws LuaError If this allocation exceeds the limit.
+	 */
+	public void allocateClosure(int upvalues) throws LuaError {
+		long bytes = CLOSURE_BYTES + (long) upvalues * UPVALUE_BYTES;
+		closureBytes += bytes;
+		total += bytes;
+		check();
+	}
+
+	/**
+	 * Throw an error if the limit has been exceeded.
+	 *
+	 * @throws LuaError If the limit has been exceeded.
+	 */
+	public void check() throws LuaError {
+		if (total > limit) throw new LuaError("allocation limit exceeded");
+	}
+
+	/**
+	 * Throw an error if the limit has been exceeded, after a script has written to a value.
+	 *
+	 * If the value is a table which is not yet tracked, it is charged for its current storage and tracked from now on,
+	 * so that its growth also counts towards the limit.
+	 *
+	 * @param written The value which was written to.
+	 * @throws LuaError If the limit has been exceeded.
+	 */
+	public void check(LuaValue written) throws LuaError {
+		if (written instanceof LuaTable) ((LuaTable) written).track(this);
+		check();
+	}
+
+	/**
+	 * Reset all counters to 0.
+	 */
+	public void reset() {
+		tableBytes = stringBytes = closureBytes = total = 0;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Get the total number of bytes allocated since this tracker was created or last reset, less any freed by tables
+	 * shrinking.
+	 *
+	 * @return The total number of bytes.
+	 */
+	public long getTotalBytes() {
+		return total;
+	}
+
+	/**
+	 * Get the number of bytes allocated for tables, including the array and hash parts, less any freed by tables
+	 * shrinking.
+	 *
+	 * @return The number of bytes allocated for tables.
+	 */
+	public long getTableBytes() {
+		return tableBytes;
+	}
+
+	/**
+	 * Get the number of bytes allocated for strings.
+	 *
+	 * @return The number of bytes allocated for strings.
+	 */
+	public long getStringBytes() {
+		return stringBytes;
+	}
+
+	/**
+	 * Get the number of bytes allocated for closures and their upvalues.
+	 *
+	 * @return The number of bytes allocated for closures.
+	 */
+	public long getClosureBytes() {
+		return closureBytes;
+	}
+}
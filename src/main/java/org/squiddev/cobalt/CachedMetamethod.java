@@ -26,12 +26,30 @@ package org.squiddev.cobalt;
 
 /**
  * A metamethod whose absence will be cached.
+ *
+ * Each metamethod corresponds to one bit of a metatable's negative cache (see {@link LuaTable#rawget(CachedMetamethod)}),
+ * so there can be at most 32 of these. The cache is cleared whenever a non-integer key is written to the metatable.
  */
 public enum CachedMetamethod {
 	INDEX(Constants.INDEX),
 	NEWINDEX(Constants.NEWINDEX),
 	LEN(Constants.LEN),
-	EQ(Constants.EQ);
+	EQ(Constants.EQ),
+	CALL(Constants.CALL),
+	ADD(Constants.ADD),
+	SUB(Constants.SUB),
+	MUL(Constants.MUL),
+	DIV(Constants.DIV),
+	MOD(Constants.MOD),
+	POW(Constants.POW),
+	UNM(Constants.UNM),
+	LT(Constants.LT),
+	LE(Constants.LE),
+	CONCAT(Constants.CONCAT),
+	TOSTRING(Constants.TOSTRING),
+	PAIRS(Constants.PAIRS),
+	METATABLE(Constants.METATABLE),
+	MODE(Constants.MODE);
 
 	private final LuaString key;
 
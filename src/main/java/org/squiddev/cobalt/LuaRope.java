@@ -10,21 +10,48 @@ public final class LuaRope extends LuaBaseString {
 	private LuaRope parent;
 	private int index;
 
-	private LuaRope(LuaBaseString[] contents, int length) {
+	/**
+	 * The tracker to charge when this rope is flattened, or {@code null}.
+	 */
+	private final AllocationTracker allocations;
+
+	private LuaRope(LuaBaseString[] contents, int length, AllocationTracker allocations) {
 		this.contents = contents;
 		this.length = length;
+		this.allocations = allocations;
 	}
 
 	public static LuaBaseString valueOf(LuaValue[] contents, int start, int length, int strLength) {
+		return valueOf(contents, start, length, strLength, null);
+	}
+
+	/**
+	 * Concatenate several strings, charging the resulting allocations to a tracker.
+	 *
+	 * Long strings are concatenated lazily, and so only a constant cost is charged when the rope is created. The
+	 * contents are charged for when the rope is flattened. As this may happen anywhere a string is read, the limit is
+	 * not checked then: callers should {@link AllocationTracker#check()} it after concatenating instead.
+	 *
+	 * @param contents    The array holding the strings to concatenate.
+	 * @param start       The index of the first string.
+	 * @param length      The number of strings.
+	 * @param strLength   The total length of the strings.
+	 * @param allocations The tracker to charge, or {@code null}.
+	 * @return The concatenated string.
+	 */
+	public static LuaBaseString valueOf(LuaValue[] contents, int start, int length, int strLength, AllocationTracker allocations) {
 		if (length == 0 || strLength == 0) return Constants.EMPTYSTRING;
 		if (length == 1) return (LuaBaseString) contents[0];
 
 		if (strLength > SMALL_STRING) {
 			LuaBaseString[] slice = new LuaBaseString[length];
 			System.arraycopy(contents, start, slice, 0, length);
-			return new LuaRope(slice, strLength);
+			if (allocations != null) allocations.allocateStringBytes(AllocationTracker.STRING_BYTES);
+			return new LuaRope(slice, strLength, allocations);
 		}
 
+		if (allocations != null) allocations.allocateStringBytes(AllocationTracker.STRING_BYTES + (long) strLength);
+
 		byte[] out = new byte[strLength];
 		int position = 0;
 		for (int i = 0; i < length; i++) {
@@ -52,6 +79,8 @@ public final class LuaRope extends LuaBaseString {
 	 * @return The actualised string.
 	 */
 	private static LuaString actualise(LuaRope current) {
+		if (current.allocations != null) current.allocations.allocateStringBytes(current.length);
+
 		byte[] out = new byte[current.length];
 		int position = 0;
 
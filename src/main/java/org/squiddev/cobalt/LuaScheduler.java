@@ -0,0 +1,391 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.debug.DebugHandler;
+import org.squiddev.cobalt.debug.DebugState;
+import org.squiddev.cobalt.function.LuaFunction;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.squiddev.cobalt.debug.DebugFrame.FLAG_HOOKED;
+import static org.squiddev.cobalt.debug.DebugFrame.FLAG_HOOKYIELD;
+
+/**
+ * Runs the main threads of many independent {@link LuaState}s cooperatively on a fixed pool of workers.
+ *
+ * Each {@link Task} owns a single {@link LuaState}. Tasks are resumed on a {@link ForkJoinPool}, which gives each worker
+ * its own run queue and allows idle workers to steal tasks from busy ones. A task is only ever queued or run once at a
+ * time, so a {@link LuaState} will never be used by two workers at once.
+ *
+ * Tasks are preempted after running a fixed number of instructions (see {@link Builder#instructionBudget(int)}), at
+ * which point they are suspended and moved to the back of the queue. For this to work, the task's state must be
+ * created with {@link #stateBuilder()}, which also runs the main thread directly on the worker. Preemption only occurs
+ * when the current coroutine can be suspended without blocking - code running inside
+ * {@link OperationHelper#noUnwind(LuaState, OperationHelper.LuaTask)}, or inside a coroutine resumed from such code,
+ * will run until it leaves that region.
+ *
+ * Java functions may suspend a task until some asynchronous operation has finished by extending
+ * {@link org.squiddev.cobalt.function.AsyncFunction}, with {@link #suspendUntil(LuaState, CompletionStage)}, or by
+ * calling {@link LuaThread#suspend(LuaState)} and later {@link Task#wake(Varargs)}.
+ */
+public final class LuaScheduler implements AutoCloseable {
+	private static final int STATUS_IDLE = 0;
+	private static final int STATUS_QUEUED = 1;
+	private static final int STATUS_RUNNING = 2;
+	private static final int STATUS_DONE = 3;
+
+	private static final AtomicInteger schedulerCount = new AtomicInteger();
+
+	private final ForkJoinPool pool;
+	private final int instructionBudget;
+
+	private LuaScheduler(Builder builder) {
+		String name = "Lua-scheduler-" + schedulerCount.getAndIncrement() + "-";
+		AtomicInteger workerCount = new AtomicInteger();
+		pool = new ForkJoinPool(builder.workers, p -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			thread.setName(name + workerCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}, null, true);
+		instructionBudget = builder.instructionBudget;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Create a builder for a {@link LuaState} which can be preempted by this scheduler.
+	 *
+	 * This sets the state's {@link LuaState.Builder#debug(DebugHandler) debug handler}, and so that should not be
+	 * changed. It also enables {@link LuaState.Builder#inlineMainThread(boolean)}, so that the main thread runs on the
+	 * scheduler's workers rather than the state's coroutine executor.
+	 *
+	 * @return The new state builder.
+	 */
+	public LuaState.Builder stateBuilder() {
+		return LuaState.builder().debug(new PreemptingDebugHandler()).inlineMainThread(true);
+	}
+
+	/**
+	 * Start running a function on the main thread of a Lua state.
+	 *
+	 * @param state    The state to run in. This should have been created with {@link #stateBuilder()} if the task
+	 *                 should be preempted, and must not be used by any other task.
+	 * @param function The function to run.
+	 * @param args     The arguments to call the function with.
+	 * @return The scheduled task.
+	 * @throws IllegalStateException If this state is already being run by another task.
+	 */
+	public Task spawn(LuaState state, LuaFunction function, Varargs args) {
+		if (state == null) throw new NullPointerException("state cannot be null");
+		if (function == null) throw new NullPointerException("function cannot be null");
+		if (args == null) throw new NullPointerException("args cannot be null");
+
+		Task task = new Task(state, function, args);
+		if (state.debug instanceof PreemptingDebugHandler) {
+			PreemptingDebugHandler handler = (PreemptingDebugHandler) state.debug;
+			if (handler.task != null && handler.task.status != STATUS_DONE) {
+				throw new IllegalStateException("State is already being run by another task");
+			}
+			handler.task = task;
+		}
+
+		task.status = STATUS_QUEUED;
+		pool.execute(task);
+		return task;
+	}
+
+	/**
+	 * Determine whether the current coroutine may be suspended with {@link #suspendUntil(LuaState, CompletionStage)}.
+	 *
+	 * @param state The current Lua state.
+	 * @return Whether this state is being run by a scheduler, the current coroutine is not inside a Java call, and the
+	 * main thread is not blocked waiting for it.
+	 */
+	public static boolean canSuspend(LuaState state) {
+		Task task = state.debug instanceof PreemptingDebugHandler ? ((PreemptingDebugHandler) state.debug).task : null;
+		return task != null && task.status == STATUS_RUNNING && state.getCurrentThread().state.javaCount == 0
+			&& !state.threader.inlineBlocked;
+	}
+
+	/**
+	 * Suspend the current task until a stage has completed. The calling function will be resumed (see
+	 * {@link org.squiddev.cobalt.function.ResumableVarArgFunction}) once the stage is complete, at which point its
+	 * result may be read.
+	 *
+	 * If the stage has already completed, this returns immediately.
+	 *
+	 * @param state The current Lua state.
+	 * @param stage The stage to wait for.
+	 * @throws LuaError        If the state is not being run by a scheduler, or cannot be suspended.
+	 * @throws UnwindThrowable To suspend the current task.
+	 */
+	public static void suspendUntil(LuaState state, CompletionStage<?> stage) throws LuaError, UnwindThrowable {
+		if (stage.toCompletableFuture().isDone()) return;
+
+		Task task = state.debug instanceof PreemptingDebugHandler ? ((PreemptingDebugHandler) state.debug).task : null;
+		if (task == null || task.status != STATUS_RUNNING) throw new LuaError("not running in a scheduler");
+		if (state.getCurrentThread().state.javaCount != 0) throw new LuaError("cannot suspend across a Java call");
+		if (state.threader.inlineBlocked) throw new LuaError("cannot suspend while main thread is blocked");
+
+		stage.whenComplete((result, error) -> task.wake(Constants.NONE));
+		LuaThread.suspend(state);
+	}
+
+	/**
+	 * Stop accepting new tasks. Tasks which have already been queued will continue running.
+	 */
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Wait for all workers to finish after {@link #close()}.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit    The unit of {@code timeout}.
+	 * @return Whether all workers finished.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return pool.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * A {@link LuaState}'s main thread, being run by a {@link LuaScheduler}.
+	 */
+	public final class Task implements Runnable {
+		private final LuaState state;
+		private final CompletableFuture<Varargs> result = new CompletableFuture<>();
+
+		private LuaFunction function;
+		private Varargs args;
+
+		/**
+		 * The current status of this task. This is only modified while holding the task's lock, but may be read
+		 * without it.
+		 */
+		private volatile int status = STATUS_IDLE;
+
+		/**
+		 * Whether {@link #wake(Varargs)} was called while this task was running.
+		 */
+		private boolean wakePending;
+
+		/**
+		 * Whether this task was suspended due to running out of instructions, rather than by another function.
+		 */
+		boolean preempted;
+
+		/**
+		 * The number of instructions remaining before this task is preempted.
+		 */
+		int remaining;
+
+		private Task(LuaState state, LuaFunction function, Varargs args) {
+			this.state = state;
+			this.function = function;
+			this.args = args;
+		}
+
+		public LuaState getState() {
+			return state;
+		}
+
+		/**
+		 * Get a future which completes with the values the main function returned, or with the {@link LuaError} it
+		 * threw.
+		 *
+		 * @return This task's result.
+		 */
+		public CompletableFuture<Varargs> getResult() {
+			return result;
+		}
+
+		/**
+		 * Resume this task after it has been suspended by a Java function. If the task is currently running, it will be
+		 * resumed again as soon as it suspends.
+		 *
+		 * @param args The values to resume the suspended function with.
+		 */
+		public void wake(Varargs args) {
+			if (args == null) throw new NullPointerException("args cannot be null");
+
+			synchronized (this) {
+				switch (status) {
+					case STATUS_IDLE:
+						this.args = args;
+						status = STATUS_QUEUED;
+						break;
+					case STATUS_RUNNING:
+						this.args = args;
+						wakePending = true;
+						return;
+					default:
+						return;
+				}
+			}
+
+			pool.execute(this);
+		}
+
+		@Override
+		public void run() {
+			Varargs args;
+			synchronized (this) {
+				if (status != STATUS_QUEUED) return;
+				status = STATUS_RUNNING;
+				args = this.args;
+				this.args = null;
+			}
+
+			remaining = instructionBudget;
+
+			Varargs result;
+			try {
+				LuaFunction function = this.function;
+				if (function != null) {
+					this.function = null;
+					result = LuaThread.runMain(state, function, args);
+				} else {
+					result = LuaThread.run(state.getCurrentThread(), args);
+				}
+			} catch (Exception | VirtualMachineError e) {
+				finish();
+				this.result.completeExceptionally(e);
+				return;
+			}
+
+			if (result != null) {
+				finish();
+				this.result.complete(result);
+				return;
+			}
+
+			synchronized (this) {
+				if (preempted) {
+					this.args = Constants.NONE;
+				} else if (!wakePending) {
+					status = STATUS_IDLE;
+					return;
+				}
+
+				wakePending = false;
+				status = STATUS_QUEUED;
+			}
+
+			pool.execute(this);
+		}
+
+		private synchronized void finish() {
+			status = STATUS_DONE;
+			args = null;
+		}
+	}
+
+	/**
+	 * A debug handler which suspends the current task once it has exceeded its instruction budget.
+	 */
+	private static final class PreemptingDebugHandler extends DebugHandler {
+		volatile Task task;
+
+		@Override
+		public void onInstruction(DebugState ds, DebugFrame di, int pc) throws LuaError, UnwindThrowable {
+			Task task = this.task;
+			if (task != null && task.preempted && (di.flags & FLAG_HOOKYIELD) != 0) {
+				// We're resuming from a preemption, so clear our flag and continue as normal.
+				task.preempted = false;
+				di.flags &= ~FLAG_HOOKYIELD;
+			} else if (task != null && task.remaining > 0 && --task.remaining == 0) {
+				LuaState state = ds.getLuaState();
+				if (state.getCurrentThread().state.javaCount == 0 && !state.threader.inlineBlocked) {
+					di.pc = pc;
+					di.flags |= FLAG_HOOKED | FLAG_HOOKYIELD;
+					task.preempted = true;
+					LuaThread.suspend(state);
+				} else {
+					// We can't suspend here, so try again on the next instruction.
+					task.remaining = 1;
+				}
+			}
+
+			super.onInstruction(ds, di, pc);
+		}
+	}
+
+	/**
+	 * A mutable builder for {@link LuaScheduler}s.
+	 */
+	public static final class Builder {
+		private int workers = Runtime.getRuntime().availableProcessors();
+		private int instructionBudget = 100_000;
+
+		private Builder() {
+		}
+
+		/**
+		 * Build a scheduler from this builder.
+		 *
+		 * @return The constructed scheduler.
+		 */
+		public LuaScheduler build() {
+			return new LuaScheduler(this);
+		}
+
+		/**
+		 * Set the number of worker threads. This defaults to the number of available processors.
+		 *
+		 * @param workers The number of workers.
+		 * @return This builder.
+		 */
+		public Builder workers(int workers) {
+			if (workers <= 0) throw new IllegalArgumentException("workers must be positive");
+			this.workers = workers;
+			return this;
+		}
+
+		/**
+		 * Set the number of instructions a task may run before being preempted. This defaults to 100,000.
+		 *
+		 * @param instructionBudget The instruction budget, or 0 to disable preemption.
+		 * @return This builder.
+		 */
+		public Builder instructionBudget(int instructionBudget) {
+			if (instructionBudget < 0) throw new IllegalArgumentException("instructionBudget cannot be negative");
+			this.instructionBudget = instructionBudget;
+			return this;
+		}
+	}
+}
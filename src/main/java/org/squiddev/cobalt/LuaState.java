@@ -26,6 +26,7 @@ package org.squiddev.cobalt;
 
 import org.squiddev.cobalt.compiler.LoadState;
 import org.squiddev.cobalt.compiler.LuaC;
+import org.squiddev.cobalt.debug.DebugFramePool;
 import org.squiddev.cobalt.debug.DebugHandler;
 import org.squiddev.cobalt.lib.platform.FileResourceManipulator;
 import org.squiddev.cobalt.lib.platform.ResourceManipulator;
@@ -107,6 +108,13 @@ public final class LuaState {
 	 */
 	public final TimeZone timezone;
 
+	/**
+	 * Tracks memory allocated by scripts on this state, or {@code null} if tracking is disabled.
+	 *
+	 * @see Builder#allocationLimit(long)
+	 */
+	public final AllocationTracker allocations;
+
 	/**
 	 * The random instance for this state.
 	 */
@@ -127,12 +135,17 @@ public final class LuaState {
 	 */
 	final YieldThreader threader;
 
+	/**
+	 * Debug frames from coroutines which have finished, to be reused by new ones.
+	 */
+	final DebugFramePool framePool = new DebugFramePool();
+
 	/**
 	 * If this state has been abandoned, and threads should be cleaned up.
 	 *
-	 * @see LuaThread#orphanCheckInterval
+	 * @see #abandon()
 	 */
-	boolean abandoned;
+	volatile boolean abandoned;
 
 	public LuaState() {
 		this(new LuaState.Builder());
@@ -152,7 +165,8 @@ public final class LuaState {
 		this.random = builder.random;
 		this.debug = builder.debug;
 		this.timezone = builder.timezone;
-		this.threader = new YieldThreader(builder.coroutineExecutor);
+		this.allocations = builder.allocationLimit > 0 ? new AllocationTracker(builder.allocationLimit) : null;
+		this.threader = new YieldThreader(builder.coroutineExecutor, builder.inlineMainThread);
 	}
 
 	/**
@@ -160,6 +174,7 @@ public final class LuaState {
 	 */
 	public void abandon() {
 		abandoned = true;
+		for (LuaThread.State thread : threader.blocked) thread.interruptWaiter();
 	}
 
 	/**
@@ -201,6 +216,19 @@ public final class LuaState {
 		currentThread = thread;
 	}
 
+	/**
+	 * Replace the main thread with a fresh one, discarding its debug state. Unlike {@link #setupThread(LuaTable)}, this
+	 * may be used when the main thread has not finished, so long as it is not running.
+	 *
+	 * @param environment The environment of the new main thread.
+	 * @see LuaStatePool
+	 */
+	void resetThread(LuaTable environment) {
+		LuaThread thread = new LuaThread(this, environment);
+		mainThread = thread;
+		currentThread = thread;
+	}
+
 	public static LuaState.Builder builder() {
 		return new LuaState.Builder();
 	}
@@ -230,6 +258,8 @@ public final class LuaState {
 		private DebugHandler debug = DebugHandler.INSTANCE;
 		private TimeZone timezone = TimeZone.getDefault();
 		private Executor coroutineExecutor = defaultCoroutineExecutor;
+		private long allocationLimit = 0;
+		private boolean inlineMainThread = false;
 
 		/**
 		 * Build a Lua state from this builder
@@ -406,5 +436,45 @@ public final class LuaState {
 			this.coroutineExecutor = coroutineExecutor;
 			return this;
 		}
+
+		/**
+		 * Track the memory allocated by scripts on this state, raising an "allocation limit exceeded" error once it
+		 * exceeds a limit. Use {@link Long#MAX_VALUE} to collect statistics without a limit.
+		 *
+		 * @param limit The maximum number of bytes which may be allocated, or 0 to disable tracking.
+		 * @return This builder
+		 * @see AllocationTracker
+		 */
+		public Builder allocationLimit(long limit) {
+			if (limit < 0) throw new IllegalArgumentException("limit cannot be negative");
+			this.allocationLimit = limit;
+			return this;
+		}
+
+		/**
+		 * Run the main thread directly on the thread which calls {@link LuaThread#run(LuaThread, Varargs)} (or
+		 * {@code runMain}), rather than on the coroutine executor. This avoids handing off to
+		 * another thread for scripts which never resume a coroutine.
+		 *
+		 * A Java stack cannot be moved between threads, so this comes with some restrictions:
+		 * <ul>
+		 *   <li>The main thread cannot be suspended from within a Java call (such as one protected by
+		 *   {@link OperationHelper#noUnwind(LuaState, OperationHelper.LuaTask)}), as it would need to return to the
+		 *   caller while still running on its thread.</li>
+		 *   <li>No coroutine may be suspended while the main thread is blocked on the calling thread, waiting for a
+		 *   coroutine it resumed from within a Java call.</li>
+		 * </ul>
+		 *
+		 * Both raise a {@link LuaError}. Hosts which suspend scripts, for instance to enforce a timeout, should leave this
+		 * disabled.
+		 *
+		 * @param inline Whether to run the main thread on the calling thread. This is disabled by default.
+		 * @return This builder
+		 * @see LuaThread#run(LuaThread, Varargs)
+		 */
+		public Builder inlineMainThread(boolean inline) {
+			this.inlineMainThread = inline;
+			return this;
+		}
 	}
 }
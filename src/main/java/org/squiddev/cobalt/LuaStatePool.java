@@ -0,0 +1,417 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A pool of pre-initialised {@link LuaState}s, which are reset and reused rather than created from scratch.
+ *
+ * Creating a state and its globals (such as with {@link JsePlatform#standardGlobals(LuaState)}) allocates every library
+ * function and table. Instead, {@link #acquire()} hands out a state from the pool, which is returned with
+ * {@link Lease#close()}. When a state is returned, it is reset to how it was after being initialised:
+ *
+ * <ul>
+ * <li>Every table reachable from the globals, {@link LuaState#loadedPackages} and the type metatables when the state
+ * was created has its entries and metatable restored. This uses {@link LuaTable#copy()}, so restoring a table which
+ * was not modified is cheap.</li>
+ * <li>The type metatables and standard streams on the {@link LuaState} are restored.</li>
+ * <li>The main thread is replaced, discarding its debug state and hooks, as well as any coroutines.</li>
+ * <li>The state's {@link LuaState#allocations allocation tracker} is reset.</li>
+ * </ul>
+ *
+ * Tables with weak keys or values are not reset. Nor is any state held outside of tables, such as upvalues of
+ * functions defined by the initialiser, or {@link LuaState#random}. States which are still running when returned, or
+ * which have been {@link LuaState#abandon() abandoned}, are discarded rather than reused.
+ *
+ * This class is thread safe, though each leased state should only be used by one thread at a time.
+ */
+public final class LuaStatePool {
+	private final Supplier<LuaState.Builder> stateBuilder;
+	private final Initialiser initialiser;
+	private final BlockingQueue<Instance> idle;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder resets = new LongAdder();
+	private final LongAdder resetNanos = new LongAdder();
+	private final LongAdder discards = new LongAdder();
+
+	private LuaStatePool(Builder builder) throws LuaError {
+		stateBuilder = builder.stateBuilder;
+		initialiser = builder.initialiser;
+		idle = new ArrayBlockingQueue<>(builder.capacity);
+
+		int prewarm = Math.min(builder.prewarm, builder.capacity);
+		for (int i = 0; i < prewarm; i++) idle.offer(create());
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Take a state from this pool, or create a new one if none are available.
+	 *
+	 * @return The leased state. This should be {@link Lease#close() closed} once finished with, to return it to the
+	 * pool.
+	 * @throws LuaError If a new state needed to be created, and initialising it failed.
+	 */
+	public Lease acquire() throws LuaError {
+		Instance instance = idle.poll();
+		if (instance != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+			instance = create();
+		}
+
+		return new Lease(instance);
+	}
+
+	private Instance create() throws LuaError {
+		LuaState state = stateBuilder.get().build();
+		LuaTable globals = initialiser.setup(state);
+		if (globals == null) throw new NullPointerException("Initialiser returned null globals");
+		return new Instance(state, globals);
+	}
+
+	private void release(Instance instance) {
+		LuaState state = instance.state;
+		if (state.abandoned || state.threader.running || state.threader.inlineThread != null) {
+			discards.increment();
+			return;
+		}
+
+		long start = System.nanoTime();
+		instance.reset();
+		resetNanos.add(System.nanoTime() - start);
+		resets.increment();
+
+		if (!idle.offer(instance)) discards.increment();
+	}
+
+	/**
+	 * The number of times {@link #acquire()} reused an existing state.
+	 *
+	 * @return The number of pool hits.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * The number of times {@link #acquire()} had to create a new state.
+	 *
+	 * @return The number of pool misses.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * The number of states which have been reset after being returned to the pool.
+	 *
+	 * @return The number of resets.
+	 */
+	public long getResets() {
+		return resets.sum();
+	}
+
+	/**
+	 * The total time spent resetting states.
+	 *
+	 * @return The total reset time, in nanoseconds.
+	 * @see #getResets()
+	 */
+	public long getResetNanos() {
+		return resetNanos.sum();
+	}
+
+	/**
+	 * The number of returned states which were thrown away, either because they could not be reset or because the
+	 * pool was full.
+	 *
+	 * @return The number of discarded states.
+	 */
+	public long getDiscards() {
+		return discards.sum();
+	}
+
+	/**
+	 * The number of states currently waiting in the pool.
+	 *
+	 * @return The number of idle states.
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * Sets up the globals of a newly created state.
+	 */
+	@FunctionalInterface
+	public interface Initialiser {
+		/**
+		 * Set up a state's globals, and its main thread.
+		 *
+		 * @param state The state to set up.
+		 * @return The state's global table.
+		 * @throws LuaError If initialising the state failed.
+		 * @see JsePlatform#standardGlobals(LuaState)
+		 */
+		LuaTable setup(LuaState state) throws LuaError;
+	}
+
+	/**
+	 * A state leased from this pool.
+	 */
+	public final class Lease implements AutoCloseable {
+		private Instance instance;
+
+		private Lease(Instance instance) {
+			this.instance = instance;
+		}
+
+		private Instance instance() {
+			Instance instance = this.instance;
+			if (instance == null) throw new IllegalStateException("Lease has been closed");
+			return instance;
+		}
+
+		/**
+		 * Get the leased state.
+		 *
+		 * @return The leased state.
+		 * @throws IllegalStateException If this lease has been closed.
+		 */
+		public LuaState getState() {
+			return instance().state;
+		}
+
+		/**
+		 * Get the leased state's global table.
+		 *
+		 * @return The global table.
+		 * @throws IllegalStateException If this lease has been closed.
+		 */
+		public LuaTable getGlobals() {
+			return instance().globals;
+		}
+
+		/**
+		 * Return this state to the pool. The state and its globals must not be used after this.
+		 */
+		@Override
+		public void close() {
+			Instance instance = this.instance;
+			if (instance == null) return;
+			this.instance = null;
+			release(instance);
+		}
+	}
+
+	/**
+	 * A pooled state, and a snapshot of it after it was initialised.
+	 */
+	private static final class Instance {
+		final LuaState state;
+		final LuaTable globals;
+
+		private final LuaTable[] tables;
+		private final LuaTable[] snapshots;
+
+		private final LuaTable stringMetatable;
+		private final LuaTable booleanMetatable;
+		private final LuaTable numberMetatable;
+		private final LuaTable nilMetatable;
+		private final LuaTable functionMetatable;
+		private final LuaTable threadMetatable;
+		private final InputStream stdin;
+		private final PrintStream stdout;
+
+		Instance(LuaState state, LuaTable globals) throws LuaError {
+			this.state = state;
+			this.globals = globals;
+
+			stringMetatable = state.stringMetatable;
+			booleanMetatable = state.booleanMetatable;
+			numberMetatable = state.numberMetatable;
+			nilMetatable = state.nilMetatable;
+			functionMetatable = state.functionMetatable;
+			threadMetatable = state.threadMetatable;
+			stdin = state.stdin;
+			stdout = state.stdout;
+
+			Map<LuaTable, LuaTable> found = new IdentityHashMap<>();
+			ArrayDeque<LuaValue> queue = new ArrayDeque<>();
+			queue.add(globals);
+			queue.add(state.loadedPackages);
+			for (LuaTable metatable : new LuaTable[]{
+				stringMetatable, booleanMetatable, numberMetatable, nilMetatable, functionMetatable, threadMetatable,
+			}) {
+				if (metatable != null) queue.add(metatable);
+			}
+
+			LuaValue value;
+			while ((value = queue.poll()) != null) {
+				if (value instanceof LuaFunction) {
+					LuaTable env = ((LuaFunction) value).getfenv();
+					if (env != null) queue.add(env);
+					continue;
+				}
+
+				if (!(value instanceof LuaTable)) continue;
+				LuaTable table = (LuaTable) value;
+				if (found.containsKey(table)) continue;
+
+				// Frozen tables can never change, so don't need restoring. Their children might though.
+				found.put(table, table.isFrozen() || table.isWeak() ? null : table.copy());
+
+				LuaTable metatable = table.getMetatable(state);
+				if (metatable != null) queue.add(metatable);
+
+				LuaValue k = Constants.NIL;
+				while (true) {
+					Varargs n = table.next(k);
+					if ((k = n.first()).isNil()) break;
+					queue.add(k);
+					queue.add(n.arg(2));
+				}
+			}
+
+			int count = 0;
+			for (LuaTable snapshot : found.values()) if (snapshot != null) count++;
+
+			tables = new LuaTable[count];
+			snapshots = new LuaTable[count];
+			int i = 0;
+			for (Map.Entry<LuaTable, LuaTable> entry : found.entrySet()) {
+				if (entry.getValue() == null) continue;
+				tables[i] = entry.getKey();
+				snapshots[i] = entry.getValue();
+				i++;
+			}
+		}
+
+		void reset() {
+			for (int i = 0; i < tables.length; i++) tables[i].restore(snapshots[i]);
+
+			state.stringMetatable = stringMetatable;
+			state.booleanMetatable = booleanMetatable;
+			state.numberMetatable = numberMetatable;
+			state.nilMetatable = nilMetatable;
+			state.functionMetatable = functionMetatable;
+			state.threadMetatable = threadMetatable;
+			state.stdin = stdin;
+			state.stdout = stdout;
+
+			state.resetThread(globals);
+			if (state.allocations != null) state.allocations.reset();
+		}
+	}
+
+	/**
+	 * A mutable builder for {@link LuaStatePool}s.
+	 */
+	public static final class Builder {
+		private Supplier<LuaState.Builder> stateBuilder = LuaState::builder;
+		private Initialiser initialiser = JsePlatform::standardGlobals;
+		private int capacity = 16;
+		private int prewarm = 0;
+
+		private Builder() {
+		}
+
+		/**
+		 * Set how new states are created.
+		 *
+		 * @param stateBuilder A function returning a builder for a new state.
+		 * @return This builder.
+		 */
+		public Builder stateBuilder(Supplier<LuaState.Builder> stateBuilder) {
+			if (stateBuilder == null) throw new NullPointerException("stateBuilder cannot be null");
+			this.stateBuilder = stateBuilder;
+			return this;
+		}
+
+		/**
+		 * Set how new states' globals are set up. This defaults to {@link JsePlatform#standardGlobals(LuaState)}.
+		 *
+		 * @param initialiser The function to set up the state.
+		 * @return This builder.
+		 */
+		public Builder initialiser(Initialiser initialiser) {
+			if (initialiser == null) throw new NullPointerException("initialiser cannot be null");
+			this.initialiser = initialiser;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of idle states to keep.
+		 *
+		 * @param capacity The pool's capacity.
+		 * @return This builder.
+		 */
+		public Builder capacity(int capacity) {
+			if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+			this.capacity = capacity;
+			return this;
+		}
+
+		/**
+		 * Set the number of states to create when the pool is built.
+		 *
+		 * @param prewarm The number of states to create up front. This is limited by the pool's capacity.
+		 * @return This builder.
+		 */
+		public Builder prewarm(int prewarm) {
+			if (prewarm < 0) throw new IllegalArgumentException("prewarm must be >= 0");
+			this.prewarm = prewarm;
+			return this;
+		}
+
+		/**
+		 * Create the pool, creating any {@link #prewarm(int)} states.
+		 *
+		 * @return The new pool.
+		 * @throws LuaError If initialising a pre-warmed state failed.
+		 */
+		public LuaStatePool build() throws LuaError {
+			return new LuaStatePool(this);
+		}
+	}
+}
@@ -41,11 +41,14 @@ import java.io.InputStream;
  * {@link LuaString} values are generally not mutable once constructed,
  * so multiple {@link LuaString} values can chare a single byte array.
  *
- * Currently {@link LuaString}s are pooled via a centrally managed weak table.
+ * Short {@link LuaString}s are deduplicated through a small, global cache of recently created strings.
  * To ensure that as many string values as possible take advantage of this,
  * Constructors are not exposed directly.  As with number, booleans, and nil,
  * instance construction should be via {@link ValueFactory#valueOf(byte[])} or similar API.
  *
+ * Strings are immutable, and so may be freely shared between {@link LuaState}s and threads. Both the cache and the
+ * lazily computed hash code are safe to use from several threads without locking.
+ *
  * @see LuaValue
  * @see ValueFactory#valueOf(String)
  * @see ValueFactory#valueOf(byte[])
@@ -79,6 +82,10 @@ public final class LuaString extends LuaBaseString {
 	 */
 	public final int length;
 
+	/**
+	 * The cached hash code, or 0 if not yet computed. Several threads may race to compute this, but will all write the
+	 * same value.
+	 */
 	private int hashCode;
 
 	private static class Cache {
@@ -88,6 +95,10 @@ public final class LuaString extends LuaBaseString {
 		 * that have been recently constructed.  If a string is being constructed frequently
 		 * from different contexts, it will generally may show up as a cache hit and resolve
 		 * to the same value.
+		 *
+		 * This is shared between all threads (for instance, when compiling several chunks in parallel) without any
+		 * locking. This is safe as {@link LuaString}'s fields are final, so a string read from another thread is always
+		 * fully constructed: a racing write may evict an entry, but will never return a mismatched string.
 		 */
 		public final LuaString[] recentShortStrings = new LuaString[RECENT_STRINGS_CACHE_SIZE];
 
@@ -26,9 +26,14 @@ package org.squiddev.cobalt;
 
 import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.lib.LuaLibrary;
+import org.squiddev.cobalt.lib.UncheckedLuaError;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 import static org.squiddev.cobalt.Constants.*;
@@ -81,19 +86,79 @@ import static org.squiddev.cobalt.ValueFactory.*;
  */
 public final class LuaTable extends LuaValue {
 	private static final Object[] EMPTY_ARRAY = new Object[0];
-	private static final Node[] EMPTY_NODES = new Node[0];
+	private static final int[] EMPTY_INTS = new int[0];
+
+	/**
+	 * The largest size the array or hash part may be preallocated to in bulk, such as by {@code table.create}.
+	 */
+	public static final int MAX_ARRAY_SIZE = 1 << 26;
+
+	private static final Comparator<Object> NUMBER_ORDER = (a, b) -> Double.compare(((LuaNumber) a).toDouble(), ((LuaNumber) b).toDouble());
+	private static final Comparator<Object> STRING_ORDER = (a, b) -> ((LuaString) a).compare((LuaString) b);
 	private static final LuaString N = valueOf("n");
 
 	private Object[] array = EMPTY_ARRAY;
-	private Node[] nodes = EMPTY_NODES;
+
+	/*
+	 * The hash part of the table. This is stored as several parallel arrays rather than an array of nodes, to avoid the
+	 * additional object per entry. Collisions are chained through the next array, using Brent's variation as in PUC
+	 * Lua. Empty slots have a key of NIL, and removed entries have a value of NIL.
+	 */
+	private Object[] keys = EMPTY_ARRAY;
+	private Object[] values = EMPTY_ARRAY;
+	private int[] next = EMPTY_INTS;
+	private int[] hashes = EMPTY_INTS;
 	private int lastFree = 0;
 
+	/*
+	 * The slot of the hash part most recently returned by next(). Traversals almost always continue from the previous
+	 * key, so checking this first avoids rehashing the key on every step.
+	 */
+	private int lastNext = -1;
+
+	/*
+	 * A cached border of this table: an index where t[border] is non-nil (or border is 0) and t[border + 1] is nil. This
+	 * is adjusted when setting integer keys next to it, and checked before being used, so it may be out of date but will
+	 * never produce an incorrect length.
+	 */
+	private int border;
+
+	/*
+	 * Whether the array and hash part may be shared with another table, as created by copy(). Shared storage is never
+	 * written to: any table which may share storage must call unshare() before modifying it.
+	 */
+	private boolean shared;
+
+	/*
+	 * Whether this table has been frozen, and so can no longer be modified. Reads of a frozen table may still update the
+	 * lastNext, border and metatableFlags hints. These are all validated before use, so racing updates from several
+	 * threads are harmless.
+	 *
+	 * This is volatile and written last in freeze(), so a thread which sees the table as frozen also sees its final
+	 * contents.
+	 */
+	private volatile boolean frozen;
+
 	private boolean weakKeys;
 	private boolean weakValues;
 
+	/*
+	 * The queue which weak references in this table are registered with. This is created when the first weak reference
+	 * is, and polled on writes and rehashes to clear collected entries in bulk.
+	 */
+	private ReferenceQueue<LuaValue> weakQueue;
+
 	private int metatableFlags;
 	private LuaTable metatable;
 
+	/**
+	 * The tracker to report this table's growth to, or {@code null} if it is not tracked.
+	 *
+	 * @see AllocationTracker#newTable(int, int)
+	 * @see AllocationTracker#check(LuaValue)
+	 */
+	AllocationTracker allocations;
+
 	/**
 	 * Construct empty table
 	 */
@@ -167,6 +232,168 @@ public final class LuaTable extends LuaValue {
 		}
 	}
 
+	/**
+	 * Create a shallow copy of this table, with the same entries and metatable.
+	 *
+	 * The copy shares this table's storage until either table is next modified, at which point the modified table makes
+	 * its own copy. This makes copying large tables (such as a template environment) cheap if the copy is rarely
+	 * written to. Tables with weak keys or values are copied immediately instead, as their weak references are
+	 * specific to one table.
+	 *
+	 * Nested tables are not copied, and so will still be shared between both tables.
+	 *
+	 * @return The copied table.
+	 */
+	public LuaTable copy() {
+		LuaTable copy = new LuaTable();
+		copy.metatable = metatable;
+
+		if (weakKeys || weakValues) {
+			copy.resize(array.length, keys.length, false);
+			copy.weakKeys = weakKeys;
+			copy.weakValues = weakValues;
+			for (int i = 0; i < array.length; i++) {
+				LuaValue value = strengthen(array[i]);
+				if (!value.isNil()) copy.rawset(i + 1, value);
+			}
+			for (int i = 0; i < keys.length; i++) {
+				LuaValue key = key(i), value = value(i);
+				if (!key.isNil() && !value.isNil()) copy.rawset(key, value);
+			}
+			return copy;
+		}
+
+		copy.array = array;
+		copy.keys = keys;
+		copy.values = values;
+		copy.next = next;
+		copy.hashes = hashes;
+		copy.lastFree = lastFree;
+		copy.border = border;
+		copy.metatableFlags = metatableFlags;
+		copy.shared = true;
+		if (!frozen) shared = true;
+		return copy;
+	}
+
+	/**
+	 * Reset this table's entries and metatable to those of a {@link #copy()} taken earlier. As with {@link #copy()},
+	 * this table shares the copy's storage until it is next modified.
+	 *
+	 * @param snapshot The copy to restore from. This must not have weak keys or values.
+	 * @see LuaStatePool
+	 */
+	void restore(LuaTable snapshot) {
+		checkMutable();
+		if (snapshot.weakKeys || snapshot.weakValues) throw new IllegalArgumentException("Cannot restore from a weak table");
+
+		array = snapshot.array;
+		keys = snapshot.keys;
+		values = snapshot.values;
+		next = snapshot.next;
+		hashes = snapshot.hashes;
+		lastFree = snapshot.lastFree;
+		border = snapshot.border;
+		lastNext = -1;
+		weakKeys = weakValues = false;
+		weakQueue = null;
+		metatable = snapshot.metatable;
+		metatableFlags = snapshot.metatableFlags;
+		shared = true;
+		snapshot.shared = true;
+	}
+
+	/**
+	 * Determine whether this table has weak keys or values.
+	 *
+	 * @return Whether this table is weak.
+	 */
+	boolean isWeak() {
+		return weakKeys || weakValues;
+	}
+
+	/**
+	 * Start reporting this table's growth to a tracker, charging it for the table's current storage. This does nothing
+	 * if the table is already tracked or is frozen.
+	 *
+	 * @param tracker The tracker to report to.
+	 */
+	void track(AllocationTracker tracker) {
+		if (allocations != null || frozen) return;
+
+		allocations = tracker;
+		tracker.allocateTable(AllocationTracker.TABLE_BYTES
+			+ (long) array.length * AllocationTracker.ARRAY_SLOT_BYTES
+			+ (long) keys.length * AllocationTracker.HASH_SLOT_BYTES);
+	}
+
+	/**
+	 * Freeze this table, preventing any further modifications.
+	 *
+	 * The table is rehashed to the smallest size which fits its current entries, and any later attempt to modify it
+	 * (such as {@link #rawset(LuaValue, LuaValue)} or {@link #setMetatable(LuaTable)}) throws an error. As a frozen
+	 * table is never written to, it may be shared between several {@link LuaState}s and read from several threads
+	 * without any synchronisation.
+	 *
+	 * Freezing a table does not publish it to other threads. The frozen table must still be handed to them safely,
+	 * such as through a {@code final} or {@code volatile} field, or a concurrent collection. Alternatively, a thread
+	 * which observes {@link #isFrozen()} returning {@code true} is guaranteed to see the table's final contents.
+	 *
+	 * This does not freeze the table's metatable, or any tables stored within it. A mutable copy of a frozen table may
+	 * be made with {@link #copy()}.
+	 *
+	 * @return This table.
+	 * @throws IllegalStateException If this table has weak keys or values, as its entries could then be removed.
+	 */
+	public LuaTable freeze() {
+		if (frozen) return this;
+		if (weakKeys || weakValues) throw new IllegalStateException("Cannot freeze a weak table");
+
+		rehash(null, false);
+		length();
+		allocations = null;
+		frozen = true;
+		return this;
+	}
+
+	/**
+	 * Determine whether this table has been frozen.
+	 *
+	 * @return Whether this table is frozen.
+	 * @see #freeze()
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Throw an error if this table is frozen.
+	 *
+	 * As this is called from methods which do not throw a {@link LuaError}, the error is wrapped in a
+	 * {@link UncheckedLuaError}. This is unwrapped when caught by the VM, and so appears as a normal Lua error.
+	 */
+	private void checkMutable() {
+		if (frozen) throw new UncheckedLuaError(new LuaError("attempt to modify a frozen table"));
+	}
+
+	/**
+	 * Give this table its own copy of any storage shared by {@link #copy()}.
+	 */
+	private void unshare() {
+		shared = false;
+		if (array.length > 0) array = array.clone();
+		if (keys.length > 0) {
+			keys = keys.clone();
+			values = values.clone();
+			next = next.clone();
+			hashes = hashes.clone();
+		}
+
+		if (allocations != null) {
+			allocations.allocateTable((long) array.length * AllocationTracker.ARRAY_SLOT_BYTES + (long) keys.length * AllocationTracker.HASH_SLOT_BYTES);
+		}
+	}
+
 	@Override
 	public LuaTable checkTable() {
 		return this;
@@ -186,7 +413,10 @@ public final class LuaTable extends LuaValue {
 	 */
 	public void presize(int nArray) {
 		if (nArray > array.length) {
-			array = setArrayVector(array, 1 << log2(nArray), false, weakValues);
+			checkMutable();
+			int oldArraySize = array.length;
+			array = setArrayVector(array, 1 << log2(nArray), false);
+			if (allocations != null) allocations.allocateTable((long) (array.length - oldArraySize) * AllocationTracker.ARRAY_SLOT_BYTES);
 		}
 	}
 
@@ -205,7 +435,7 @@ public final class LuaTable extends LuaValue {
 	 * @return length of the hash part, does not relate to count of objects in the table.
 	 */
 	public int getHashLength() {
-		return nodes.length;
+		return keys.length;
 	}
 
 	@Override
@@ -214,12 +444,13 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void setMetatable(LuaTable mt) {
+		checkMutable();
 		metatable = mt;
 
 		boolean newWeakKeys = false, newWeakValues = false;
 
 		if (mt != null) {
-			LuaValue mode = mt.rawget(Constants.MODE);
+			LuaValue mode = mt.rawget(CachedMetamethod.MODE);
 			if (mode.isString()) {
 				String m = mode.toString();
 				if (m.indexOf('k') >= 0) newWeakKeys = true;
@@ -235,6 +466,7 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void useWeak(boolean newWeakKeys, boolean newWeakValues) {
+		checkMutable();
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
@@ -274,6 +506,9 @@ public final class LuaTable extends LuaValue {
 	 * @return The removed item, or {@link Constants#NONE} if not removed
 	 */
 	public LuaValue remove(int pos) {
+		checkMutable();
+		if (shared) unshare();
+
 		int n = length();
 		if (pos == 0) {
 			pos = n;
@@ -281,11 +516,21 @@ public final class LuaTable extends LuaValue {
 			return NONE;
 		}
 		LuaValue v = rawget(pos);
+		if (v.isNil()) return NONE;
+
+		// Shift the remaining elements down in bulk when they all lie within the array part.
+		int end = nextNil(pos + 1);
+		if (pos >= 1 && end - 1 <= array.length) {
+			System.arraycopy(array, pos, array, pos - 1, end - pos - 1);
+			rawset(end - 1, NIL);
+			return v;
+		}
+
 		for (LuaValue r = v; !r.isNil(); ) {
 			r = rawget(pos + 1);
 			rawset(pos++, r);
 		}
-		return v.isNil() ? NONE : v;
+		return v;
 	}
 
 	/**
@@ -295,9 +540,22 @@ public final class LuaTable extends LuaValue {
 	 * @param value The value to insert
 	 */
 	public void insert(int pos, LuaValue value) {
+		checkMutable();
+		if (shared) unshare();
+
 		if (pos == 0) {
 			pos = length() + 1;
 		}
+		if (value.isNil()) return;
+
+		// Shift the following elements up in bulk when they all lie within the array part.
+		int end = nextNil(pos);
+		if (pos >= 1 && end <= array.length) {
+			System.arraycopy(array, pos - 1, array, pos, end - pos);
+			rawset(pos, value);
+			return;
+		}
+
 		while (!value.isNil()) {
 			LuaValue v = rawget(pos);
 			rawset(pos++, value);
@@ -305,6 +563,134 @@ public final class LuaTable extends LuaValue {
 		}
 	}
 
+	/**
+	 * Find the first nil element at or after an index.
+	 *
+	 * @param index The index to start searching from.
+	 * @return The first index {@code i >= index} where {@code t[i]} is nil.
+	 */
+	private int nextNil(int index) {
+		while (!rawget(index).isNil()) index++;
+		return index;
+	}
+
+	/**
+	 * Copy the elements {@code t[from], ..., t[to]} into {@code dest[destFrom], ...}.
+	 *
+	 * This behaves as if each element was copied with {@link #rawget(int)} and {@link #rawset(int, LuaValue)}, and
+	 * correctly handles overlapping ranges when {@code dest} is this table. Ranges within the array part are copied
+	 * using {@link System#arraycopy(Object, int, Object, int, int)}.
+	 *
+	 * @param from     The first index to copy.
+	 * @param to       The last index to copy, inclusive.
+	 * @param dest     The table to copy into. This may be this table.
+	 * @param destFrom The index in {@code dest} to copy the first element to.
+	 */
+	public void move(int from, int to, LuaTable dest, int destFrom) {
+		if (to < from) return;
+		dest.checkMutable();
+		if (dest.shared) dest.unshare();
+
+		int count = to - from + 1;
+		int destTo = destFrom + count - 1;
+
+		if (from >= 1 && to <= array.length && destFrom >= 1 && dest.ensureArray(destFrom, destTo)) {
+			// The source array may have been reallocated if dest is this table.
+			if (!weakValues && !dest.weakValues) {
+				System.arraycopy(array, from - 1, dest.array, destFrom - 1, count);
+				return;
+			}
+
+			// Weak entries are registered with their table's queue and record their slot, so must be created afresh for
+			// the destination rather than copied.
+			if (dest.weakQueue != null) dest.purgeWeakEntries();
+			Object[] source = array, target = dest.array;
+			if (dest == this && destFrom > from) {
+				for (int i = count - 1; i >= 0; i--) target[destFrom - 1 + i] = dest.moveValue(source[from - 1 + i], destFrom - 1 + i);
+			} else {
+				for (int i = 0; i < count; i++) target[destFrom - 1 + i] = dest.moveValue(source[from - 1 + i], destFrom - 1 + i);
+			}
+			return;
+		}
+
+		if (dest == this && destFrom > from && destFrom <= to) {
+			// Copy backwards so we don't overwrite elements before they're read.
+			for (int i = count - 1; i >= 0; i--) dest.rawset(destFrom + i, rawget(from + i));
+		} else {
+			for (int i = 0; i < count; i++) dest.rawset(destFrom + i, rawget(from + i));
+		}
+	}
+
+	/**
+	 * Convert an element of another table's array part into one which may be stored in this table's array part.
+	 *
+	 * @param value The raw element, which may be a weak reference.
+	 * @param index The index in the array part it will be stored at.
+	 * @return The element to store.
+	 */
+	private Object moveValue(Object value, int index) {
+		LuaValue strong = strengthen(value);
+		return weakValues ? weaken(strong, ~index) : strong;
+	}
+
+	/**
+	 * Copy the elements {@code t[from], ..., t[to]} into a new list.
+	 *
+	 * @param from The first index to copy.
+	 * @param to   The last index to copy, inclusive.
+	 * @return A new table, whose elements {@code 1} to {@code to - from + 1} are those of this table.
+	 * @see #move(int, int, LuaTable, int)
+	 */
+	public LuaTable slice(int from, int to) {
+		// The slice can hold no more elements than this table does, so don't presize past that (or the maximum array
+		// size). The result still grows as needed while it is filled.
+		long size = Math.min((long) to - from + 1, Math.min((long) array.length + keys.length, MAX_ARRAY_SIZE));
+		LuaTable result = new LuaTable(size <= 0 ? 0 : (int) size, 0);
+		move(from, to, result, 1);
+		return result;
+	}
+
+	/**
+	 * Set the elements {@code t[from], ..., t[to]} to a single value.
+	 *
+	 * @param from  The first index to set.
+	 * @param to    The last index to set, inclusive.
+	 * @param value The value to set each element to. This may be {@link Constants#NIL} to clear the range.
+	 */
+	public void fill(int from, int to, LuaValue value) {
+		if (to < from) return;
+		checkMutable();
+		if (shared) unshare();
+
+		if (from >= 1 && (value.isNil() ? to <= array.length : ensureArray(from, to))) {
+			if (weakValues) {
+				for (int i = from - 1; i < to; i++) array[i] = weaken(value, ~i);
+			} else {
+				Arrays.fill(array, from - 1, to, value);
+			}
+			return;
+		}
+
+		for (int i = from; i <= to; i++) rawset(i, value);
+	}
+
+	/**
+	 * Ensure the range {@code [from, to]} lies within the array part, growing it if the range starts within or directly
+	 * after the current array part.
+	 *
+	 * @param from The first index, which must be positive.
+	 * @param to   The last index, inclusive.
+	 * @return Whether the range now lies within the array part.
+	 */
+	private boolean ensureArray(int from, int to) {
+		if (to <= array.length) return true;
+		if (from > array.length + 1 || to > MAX_ARRAY_SIZE) return false;
+
+		// Use resize rather than presize, as existing integer keys in the hash part may now belong in the array.
+		resize(1 << log2(to), keys.length, false);
+		return true;
+	}
+
 	/**
 	 * Concatenate the contents of a table efficiently, using {@link Buffer}
 	 *
@@ -338,8 +724,30 @@ public final class LuaTable extends LuaValue {
 
 
 	public int length() {
+		// In the common case, the border will be unchanged or have been adjusted by rawset. A border of 0 is treated as
+		// unknown, as the array part may have been filled without going through rawset(int, LuaValue).
+		int border = this.border;
+		if (border > 0 && !rawget(border).isNil()) {
+			// Like the full search, prefer a border past the end of the array part, so values set beyond it (such as by
+			// a sparse insert) are still counted.
+			int a;
+			if (rawget(border + 1).isNil() && (border >= (a = getArrayLength()) || rawget(a + 1).isNil())) return border;
+		} else {
+			border = 0;
+		}
+
+		return this.border = findBorder(border);
+	}
+
+	/**
+	 * Search for a border of this table.
+	 *
+	 * @param m An index where {@code t[m]} is non-nil, or 0.
+	 * @return An index where {@code t[border]} is non-nil (or 0) and {@code t[border + 1]} is nil.
+	 */
+	private int findBorder(int m) {
 		int a = getArrayLength();
-		int n = a + 1, m = 0;
+		int n = Math.max(m, a) + 1;
 		while (!rawget(n).isNil()) {
 			m = n;
 			n += a + getHashLength() + 1;
@@ -369,8 +777,8 @@ public final class LuaTable extends LuaValue {
 				n = i + 1;
 			}
 		}
-		for (Node node : nodes) {
-			LuaValue value = node.key();
+		for (Object rawKey : keys) {
+			LuaValue value = strengthen(rawKey);
 			if (value.type() == Constants.TNUMBER) {
 				double key = value.toDouble();
 				if (key > n) n = key;
@@ -416,15 +824,66 @@ public final class LuaTable extends LuaValue {
 		}
 
 		i -= array.length;
-		for (; i < nodes.length; i++) {
-			Node node = nodes[i];
-			LuaValue value = node.value();
-			if (!node.key().isNil() && !value.isNil()) return varargsOf(node.key(), value);
+		for (; i < keys.length; i++) {
+			LuaValue nextKey = key(i);
+			if (nextKey.isNil()) continue;
+
+			LuaValue value = value(i);
+			if (!value.isNil()) {
+				lastNext = i;
+				return varargsOf(nextKey, value);
+			}
 		}
 
 		return NIL;
 	}
 
+	/**
+	 * Find the next key-value pair in a traversal of this table, writing them into an array rather than allocating a
+	 * {@link Varargs}. This follows the same semantics as {@link #next(LuaValue)}.
+	 *
+	 * @param key    The previous key, or {@link Constants#NIL} to start at the beginning.
+	 * @param out    The array to write the results to.
+	 * @param offset The index to write the key to. The value is written to the next index.
+	 * @param count  The number of results to write. Results after the key and value are filled with {@link Constants#NIL}.
+	 * @return Whether there was another entry. If not, {@code out} is left untouched.
+	 * @throws LuaError If the supplied key is invalid.
+	 * @see #next(LuaValue)
+	 */
+	public boolean next(LuaValue key, LuaValue[] out, int offset, int count) throws LuaError {
+		int i = findIndex(key);
+		if (i < 0) throw new LuaError("invalid key to 'next'");
+
+		for (; i < array.length; i++) {
+			LuaValue value = strengthen(array[i]);
+			if (!value.isNil()) {
+				setResults(valueOf(i + 1), value, out, offset, count);
+				return true;
+			}
+		}
+
+		i -= array.length;
+		for (; i < keys.length; i++) {
+			LuaValue nextKey = key(i);
+			if (nextKey.isNil()) continue;
+
+			LuaValue value = value(i);
+			if (!value.isNil()) {
+				lastNext = i;
+				setResults(nextKey, value, out, offset, count);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static void setResults(LuaValue key, LuaValue value, LuaValue[] out, int offset, int count) {
+		out[offset] = key;
+		if (count > 1) out[offset + 1] = value;
+		for (int i = 2; i < count; i++) out[offset + i] = NIL;
+	}
+
 	/**
 	 * Returns the index of this key for table traversals + 1.
 	 *
@@ -438,23 +897,14 @@ public final class LuaTable extends LuaValue {
 		// Its in the array part so just return that
 		int arrayIndex = arraySlot(key);
 		if (arrayIndex > 0 && arrayIndex <= array.length) return arrayIndex;
-		if (nodes.length == 0) return -1;
 
-		// Must be in the main part so try to find it in the chain.
-		int idx = hashSlot(key);
-		Node node = nodes[idx];
-		while (true) {
-			if (node.key().equals(key)) {
-				return idx + array.length + 1;
-			}
+		// If we're continuing the previous traversal, we can skip the lookup entirely.
+		int last = lastNext;
+		if (last >= 0 && last < keys.length && key(last) == key) return last + array.length + 1;
 
-			if (node.next >= 0) {
-				idx = node.next;
-				node = nodes[node.next];
-			} else {
-				return -1;
-			}
-		}
+		// Must be in the main part so try to find it in the chain.
+		int slot = findSlot(key, key.hashCode());
+		return slot < 0 ? -1 : slot + array.length + 1;
 	}
 
 	/**
@@ -491,6 +941,27 @@ public final class LuaTable extends LuaValue {
 		return v.isNil() ? NONE : varargsOf(LuaInteger.valueOf(k), v);
 	}
 
+	/**
+	 * Find the next integer key-value pair, writing them into an array rather than allocating a {@link Varargs}. This
+	 * follows the same semantics as {@link #inext(LuaValue)}.
+	 *
+	 * @param key    The previous integer key.
+	 * @param out    The array to write the results to.
+	 * @param offset The index to write the key to. The value is written to the next index.
+	 * @param count  The number of results to write. Results after the key and value are filled with {@link Constants#NIL}.
+	 * @return Whether there was another entry. If not, {@code out} is left untouched.
+	 * @throws LuaError If the supplied key is not a number.
+	 * @see #inext(LuaValue)
+	 */
+	public boolean inext(LuaValue key, LuaValue[] out, int offset, int count) throws LuaError {
+		int k = key.checkInteger() + 1;
+		LuaValue v = rawget(k);
+		if (v.isNil()) return false;
+
+		setResults(LuaInteger.valueOf(k), v, out, offset, count);
+		return true;
+	}
+
 
 	private static int hashpow2(int hashCode, int mask) {
 		return hashCode & mask;
@@ -504,19 +975,20 @@ public final class LuaTable extends LuaValue {
 	 * Find the hashtable slot index to use.
 	 *
 	 * @param key      the key to look for
+	 * @param hash     the key's hash code
 	 * @param hashMask N-1 where N is the number of hash slots (must be power of 2)
 	 * @return the slot index
 	 */
-	private static int hashSlot(LuaValue key, int hashMask) {
+	private static int hashSlot(LuaValue key, int hash, int hashMask) {
 		switch (key.type()) {
 			case TNUMBER:
 			case TTABLE:
 			case TTHREAD:
 			case TLIGHTUSERDATA:
 			case TUSERDATA:
-				return hashmod(key.hashCode(), hashMask);
+				return hashmod(hash, hashMask);
 			default:
-				return hashpow2(key.hashCode(), hashMask);
+				return hashpow2(hash, hashMask);
 		}
 	}
 
@@ -536,16 +1008,6 @@ public final class LuaTable extends LuaValue {
 		return 0;
 	}
 
-	/**
-	 * Find the hashtable slot to use
-	 *
-	 * @param key key to look for
-	 * @return slot to use
-	 */
-	private int hashSlot(LuaValue key) {
-		return hashSlot(key, nodes.length - 1);
-	}
-
 	private void dropWeakArrayValues() {
 		for (int i = 0; i < array.length; ++i) {
 			Object x = array[i];
@@ -669,11 +1131,41 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void swap(int i, int j) {
+		checkMutable();
+		if (shared) unshare();
+
 		Object a = array[i];
 		array[i] = array[j];
 		array[j] = a;
 	}
 
+	/**
+	 * Sort the first {@code n} elements of the array part by their natural order, if they are all numbers or all
+	 * strings. This avoids going through {@link OperationHelper#lt(LuaState, LuaValue, LuaValue)} for every comparison.
+	 *
+	 * @param n The number of elements to sort, as returned by {@link #prepSort()}.
+	 * @return Whether the elements were sorted. If not, the table is left unchanged.
+	 */
+	public boolean sortPrimitive(int n) {
+		Object[] array = this.array;
+		if (n > array.length) return false;
+
+		boolean numbers = true, strings = true;
+		for (int i = 0; i < n && (numbers || strings); i++) {
+			Object value = array[i];
+			if (!(value instanceof LuaNumber)) numbers = false;
+			if (!(value instanceof LuaString)) strings = false;
+		}
+
+		if (!numbers && !strings) return false;
+
+		checkMutable();
+		if (shared) unshare();
+		Arrays.sort(this.array, 0, n, numbers ? NUMBER_ORDER : STRING_ORDER);
+
+		return true;
+	}
+
 	/**
 	 * This may be deprecated in a future release.
 	 * It is recommended to count via iteration over next() instead
@@ -730,13 +1222,13 @@ public final class LuaTable extends LuaValue {
 	/**
 	 * Resize the table
 	 */
-	private static Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange, boolean weakValues) {
+	private Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange) {
 		Object[] newArray = new Object[n];
 		int len = Math.min(n, oldArray.length);
 		if (metaChange) {
 			for (int i = 0; i < len; i++) {
 				LuaValue value = strengthen(oldArray[i]);
-				newArray[i] = weakValues ? weaken(value) : value;
+				newArray[i] = weakValues ? weaken(value, ~i) : value;
 			}
 		} else {
 			System.arraycopy(oldArray, 0, newArray, 0, Math.min(n, oldArray.length));
@@ -790,13 +1282,16 @@ public final class LuaTable extends LuaValue {
 
 	private void setNodeVector(int size) {
 		if (size == 0) {
-			nodes = EMPTY_NODES;
+			keys = values = EMPTY_ARRAY;
+			next = hashes = EMPTY_INTS;
 			lastFree = 0;
 		} else {
 			int lsize = log2(size);
 			size = 1 << lsize;
-			Node[] nodes = this.nodes = new Node[size];
-			for (int i = 0; i < size; i++) nodes[i] = new Node(weakKeys, weakValues);
+			Arrays.fill(keys = new Object[size], NIL);
+			Arrays.fill(values = new Object[size], NIL);
+			Arrays.fill(next = new int[size], -1);
+			hashes = new int[size];
 
 			// All positions are free
 			lastFree = size - 1;
@@ -805,48 +1300,96 @@ public final class LuaTable extends LuaValue {
 
 	private void resize(int newArraySize, int newHashSize, boolean modeChange) {
 		int oldArraySize = array.length;
-		int oldHashSize = nodes.length;
+		int oldHashSize = keys.length;
 
-		if (newArraySize != 0 && newHashSize != 0 && newArraySize == oldArraySize && newHashSize == oldHashSize && !modeChange) {
-			throw new IllegalStateException("Attempting to resize with no change");
-		}
+		// Note that the new size may be the same as the old one, when rehashing a full table to remove dead entries.
 
 		// Array part must grow
 		if (newArraySize > oldArraySize) {
-			array = setArrayVector(array, newArraySize, modeChange, weakValues);
+			array = setArrayVector(array, newArraySize, modeChange);
 		}
 
-		Node[] oldNode = nodes;
+		Object[] oldKeys = keys, oldValues = values;
+		int[] oldHashes = hashes;
 		setNodeVector(newHashSize);
 
+		// Account for the change in size before reinserting entries, as that may resize the table again.
+		if (allocations != null) {
+			allocations.allocateTable((long) (newArraySize - oldArraySize) * AllocationTracker.ARRAY_SLOT_BYTES
+				+ (long) (keys.length - oldHashSize) * AllocationTracker.HASH_SLOT_BYTES);
+		}
+
 		if (newArraySize < oldArraySize) {
 			Object[] oldArray = array;
-			array = setArrayVector(oldArray, newArraySize, modeChange, weakValues);
+			array = setArrayVector(oldArray, newArraySize, modeChange);
 
 			// Copy values out of array part into the hash
 			for (int i = newArraySize; i < oldArraySize; i++) {
 				LuaValue value = strengthen(oldArray[i]);
-				if (!value.isNil()) rawset(i + 1, value);
+				if (value.isNil()) continue;
+
+				LuaInteger key = valueOf(i + 1);
+				if (modeChange) {
+					rawset(key, value);
+				} else {
+					reinsert(key, key, oldArray[i], value, key.hashCode());
+				}
 			}
 
 		} else if (newArraySize == oldArraySize && modeChange) {
 			Object[] values = array;
 			for (int i = 0; i < oldArraySize; i++) {
 				LuaValue value = strengthen(values[i]);
-				values[i] = weakValues ? weaken(value) : value;
+				values[i] = weakValues ? weaken(value, ~i) : value;
 			}
 		}
 
-		// Re-insert elements from hash part
+		// Re-insert elements from hash part. The weak mode may have changed, so we can't use key() and value().
 		for (int i = oldHashSize - 1; i >= 0; i--) {
-			Node old = oldNode[i];
-			LuaValue key = old.key();
-			LuaValue value = old.value();
-			if (!key.isNil() && !value.isNil()) rawset(key, value);
+			LuaValue key = strengthen(oldKeys[i]);
+			LuaValue value = strengthen(oldValues[i]);
+			if (key.isNil() || value.isNil()) continue;
+
+			if (modeChange) {
+				rawset(key, value);
+			} else {
+				reinsert(key, oldKeys[i], oldValues[i], value, oldHashes[i]);
+			}
+		}
+	}
+
+	/**
+	 * Re-insert an entry into the table after resizing it, reusing the existing key and value objects. This avoids
+	 * creating new weak references for every entry each time the table is resized.
+	 *
+	 * @param key      The key to insert.
+	 * @param rawKey   The existing object stored for this key.
+	 * @param rawValue The existing object stored for this value.
+	 * @param value    The value, used if this entry cannot be inserted directly.
+	 * @param hash     The key's hash code.
+	 */
+	private void reinsert(LuaValue key, Object rawKey, Object rawValue, LuaValue value, int hash) {
+		int index = arraySlot(key);
+		if (index > 0 && index <= array.length) {
+			array[index - 1] = rawValue;
+			if (rawValue instanceof WeakEntry) ((WeakEntry) rawValue).slot = ~(index - 1);
+			return;
 		}
+
+		int slot = newKey(key, rawKey, hash);
+		if (slot < 0) {
+			// Shouldn't happen, as the table has been sized to fit every entry, but fall back to a normal insert.
+			rawset(key, value);
+			return;
+		}
+
+		values[slot] = rawValue;
+		if (rawValue instanceof WeakEntry) ((WeakEntry) rawValue).slot = slot;
 	}
 
 	private void rehash(LuaValue extraKey, boolean mode) {
+		if (shared) unshare();
+		purgeWeakEntries();
 		if (weakValues) dropWeakArrayValues();
 
 		int[] nums = new int[32]; // Counts for various functions
@@ -857,11 +1400,10 @@ public final class LuaTable extends LuaValue {
 		// Count the number of hash values that can be moved to the array, as well as the total count.
 		// See numusehash in ltable.c
 		{
-			int i = nodes.length;
+			int i = keys.length;
 			while (--i >= 0) {
-				Node node = nodes[i];
-				LuaValue key = node.key();
-				if (!key.isNil()) {
+				LuaValue key = strengthen(keys[i]);
+				if (!key.isNil() && !strengthen(values[i]).isNil()) {
 					arrayCount += countInt(key, nums);
 					totalCount++;
 				}
@@ -897,7 +1439,13 @@ public final class LuaTable extends LuaValue {
 			arrayCount = numArray;
 		}
 
-		resize(arraySize, totalCount - arrayCount, mode);
+		int hashSize = totalCount - arrayCount;
+		if (extraKey == null && !mode && arraySize == array.length && (hashSize == 0 ? 0 : 1 << log2(hashSize)) == keys.length) {
+			// Already as small as possible, such as when freezing a table which has never had entries removed.
+			return;
+		}
+
+		resize(arraySize, hashSize, mode);
 	}
 	//endregion
 
@@ -909,10 +1457,9 @@ public final class LuaTable extends LuaValue {
 	 * @return The first slot in the map
 	 */
 	private int getFreePos() {
-		if (nodes.length == 0) return -1;
+		if (keys.length == 0) return -1;
 		while (lastFree >= 0) {
-			Node last = nodes[lastFree--];
-			if (last.key == NIL) {
+			if (keys[lastFree--] == NIL) {
 				return lastFree + 1;
 			}
 		}
@@ -927,135 +1474,159 @@ public final class LuaTable extends LuaValue {
 	 * or not. If it is not, move colliding node to an empty place and put new key in its main position, otherwise the
 	 * colliding node is in its main position and the new key goes to an empty position.
 	 *
-	 * @param key The key to set
+	 * @param key  The key to set
+	 * @param hash The key's hash code
+	 * @return The slot for this key, or {@code -1} if the table was rehashed instead.
 	 * @throws IllegalArgumentException If this key cannot be used.
 	 */
-	private Node newKey(LuaValue key) {
+	private int newKey(LuaValue key, int hash) {
+		return newKey(key, null, hash);
+	}
+
+	/**
+	 * Insert a new key into a hash table, storing an existing (possibly weak) reference to the key.
+	 *
+	 * @param key    The key to set
+	 * @param rawKey The object to store in the key slot, or {@code null} to create one from {@code key}.
+	 * @param hash   The key's hash code
+	 * @return The slot for this key, or {@code -1} if the table was rehashed instead.
+	 * @see #newKey(LuaValue, int)
+	 */
+	private int newKey(LuaValue key, Object rawKey, int hash) {
 		if (key.isNil()) throw new IllegalArgumentException("table index is nil");
 
 		// Rehash and let the rawgetter handle it
-		if (nodes.length == 0) {
+		if (keys.length == 0) {
 			rehash(key, false);
-			return null;
+			return -1;
 		}
 
-		Node mainNode = nodes[hashSlot(key)];
-		LuaValue mainKey = mainNode.key();
-		if (!mainKey.isNil() && !mainNode.value().isNil()) {
+		int mask = keys.length - 1;
+		int mainPos = hashSlot(key, hash, mask);
+		LuaValue mainKey = key(mainPos);
+		if (!mainKey.isNil() && !value(mainPos).isNil()) {
 			// If we've got a collision then
 			final int freePos = getFreePos();
 
 			if (freePos < 0) {
 				rehash(key, false);
-				return null;
+				return -1;
 			}
 
-			final Node freeNode = nodes[freePos];
-
-			int otherPos = hashSlot(mainKey);
-			Node otherNode = nodes[otherPos];
-
-			if (otherNode != mainNode) {
+			int otherPos = hashSlot(mainKey, hashes[mainPos], mask);
+			if (otherPos != mainPos) {
 				// If the colliding position isn't at its main position then we move it to a free position
 
 				// Walk the chain to find the node just before the desired one
-				while (nodes[otherNode.next] != mainNode) {
-					otherNode = nodes[otherNode.next];
-				}
+				while (next[otherPos] != mainPos) otherPos = next[otherPos];
 
 				// Rechain other to point to the free position
-				otherNode.next = freePos;
+				next[otherPos] = freePos;
 
 				// Copy colliding node into free position
-				freeNode.key = mainNode.key;
-				freeNode.value = mainNode.value;
-				freeNode.next = mainNode.next;
+				keys[freePos] = keys[mainPos];
+				values[freePos] = values[mainPos];
+				hashes[freePos] = hashes[mainPos];
+				next[freePos] = next[mainPos];
+				if (weakKeys || weakValues) moveWeakSlot(freePos);
 
 				// Clear main node
-				mainNode.next = -1;
-				mainNode.key = NIL;
-				mainNode.value = NIL;
+				next[mainPos] = -1;
+				keys[mainPos] = NIL;
+				values[mainPos] = NIL;
 			} else {
 				// Colliding node is in the main position so we will assign to a free position.
 
-				if (mainNode.next != -1) {
+				if (next[mainPos] != -1) {
 					// We're inserting "after" the first node in the linked list so change the
 					// next node.
-					freeNode.next = mainNode.next;
+					next[freePos] = next[mainPos];
 				} else {
-					assert freeNode.next == -1;
+					assert next[freePos] == -1;
 				}
 
 				// Insert after the main node
-				mainNode.next = freePos;
+				next[mainPos] = freePos;
 
-				mainNode = freeNode;
+				mainPos = freePos;
 			}
 		}
 
-		mainNode.key = weakKeys ? weaken(key) : key;
-
-		return mainNode;
+		if (rawKey == null) {
+			keys[mainPos] = weakKeys ? weaken(key, mainPos) : key;
+		} else {
+			keys[mainPos] = rawKey;
+			if (rawKey instanceof WeakEntry) ((WeakEntry) rawKey).slot = mainPos;
+		}
+		hashes[mainPos] = hash;
+		return mainPos;
 	}
 
-	private Node rawgetNode(int search) {
-		if (nodes.length == 0) return null;
+	/**
+	 * Find the slot in the hash part containing an integer key.
+	 *
+	 * @param search The key to find
+	 * @return The slot containing this key, or {@code -1} if it is not present.
+	 */
+	private int findSlot(int search) {
+		if (keys.length == 0) return -1;
 
-		Node node = nodes[hashmod(search, nodes.length - 1)];
-		while (true) {
-			LuaValue key = node.key();
-			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
-		}
+		int slot = hashmod(search, keys.length - 1);
+		do {
+			// Numbers are never weak, so we can use the key directly.
+			Object key = keys[slot];
+			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) return slot;
+			slot = next[slot];
+		} while (slot >= 0);
+
+		return -1;
 	}
 
-	private Node rawgetNode(LuaValue search) {
-		if (nodes.length == 0) return null;
+	/**
+	 * Find the slot in the hash part containing a key.
+	 *
+	 * @param search The key to find
+	 * @param hash   The key's hash code
+	 * @return The slot containing this key, or {@code -1} if it is not present.
+	 */
+	private int findSlot(LuaValue search, int hash) {
+		if (keys.length == 0) return -1;
 
-		int slot = hashSlot(search);
-		Node node = nodes[slot];
-		while (true) {
-			LuaValue key = node.key();
-			if (key.equals(search)) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
-		}
+		int slot = hashSlot(search, hash, keys.length - 1);
+		do {
+			if (hashes[slot] == hash && key(slot).equals(search)) return slot;
+			slot = next[slot];
+		} while (slot >= 0);
+
+		return -1;
 	}
 
 	public LuaValue rawget(int search) {
 		if (search > 0 && search <= array.length) {
 			return strengthen(array[search - 1]);
-		} else if (nodes.length == 0) {
+		} else if (keys.length == 0) {
 			return NIL;
 		} else {
-			Node node = rawgetNode(search);
-			return node == null ? NIL : node.value();
+			int slot = findSlot(search);
+			return slot < 0 ? NIL : value(slot);
 		}
 	}
 
 	public LuaValue rawget(LuaValue search) {
 		if (search instanceof LuaInteger) return rawget(((LuaInteger) search).v);
 
-		Node node = rawgetNode(search);
-		return node == null ? NIL : node.value();
+		int slot = findSlot(search, search.hashCode());
+		return slot < 0 ? NIL : value(slot);
 	}
 
 	public LuaValue rawget(CachedMetamethod search) {
 		int flag = 1 << search.ordinal();
 		if ((metatableFlags & flag) != 0) return NIL;
 
-		Node node = rawgetNode(search.getKey());
-		if (node != null) {
-			LuaValue value = node.value();
+		LuaString key = search.getKey();
+		int slot = findSlot(key, key.hashCode());
+		if (slot >= 0) {
+			LuaValue value = value(slot);
 			if (!value.isNil()) return value;
 		}
 
@@ -1064,22 +1635,33 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void rawset(int key, LuaValue value) {
+		checkMutable();
+		if (shared) unshare();
+		if (weakQueue != null) purgeWeakEntries();
+
+		if (value.isNil()) {
+			// Clearing an element below the border leaves a hole, but the border itself is still valid.
+			if (key == border) border = key - 1;
+		} else if (key == border + 1) {
+			border = key;
+		}
+
 		LuaValue valueOf = null;
 		do {
 			if (key > 0 && key <= array.length) {
-				array[key - 1] = weakValues ? weaken(value) : value;
+				array[key - 1] = weakValues ? weaken(value, ~(key - 1)) : value;
 				return;
 			}
 
-			if (valueOf == null) valueOf = valueOf(key);
-
-			Node node = rawgetNode(valueOf);
-			if (node == null) node = newKey(valueOf);
+			int slot = findSlot(key);
+			if (slot < 0) {
+				if (valueOf == null) valueOf = valueOf(key);
+				slot = newKey(valueOf, key);
+			}
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (slot >= 0) {
+				values[slot] = weakValues ? weaken(value, slot) : value;
 				return;
 			}
 		} while (true);
@@ -1091,142 +1673,182 @@ public final class LuaTable extends LuaValue {
 			return;
 		}
 
+		checkMutable();
+		if (shared) unshare();
+		if (weakQueue != null) purgeWeakEntries();
+
+		int hash = key.hashCode();
 		do {
-			Node node = rawgetNode(key);
-			if (node == null) node = newKey(key);
+			int slot = findSlot(key, hash);
+			if (slot < 0) slot = newKey(key, hash);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
-				metatableFlags = 0;
+			if (slot >= 0) {
+				values[slot] = weakValues ? weaken(value, slot) : value;
+				if (metatableFlags != 0) metatableFlags = 0;
 				return;
 			}
 		} while (true);
 	}
+
+	/**
+	 * Get the key in a slot of the hash part, converting it to a strong reference if required. If the key has been
+	 * collected, then the value is cleared too, marking the slot as "dead".
+	 *
+	 * @param slot The slot to get.
+	 * @return The slot's key, or {@link Constants#NIL} if it is empty.
+	 */
+	private LuaValue key(int slot) {
+		Object key = keys[slot];
+		if (key == NIL || !weakKeys) return (LuaValue) key;
+
+		LuaValue strengthened = strengthen(key);
+		if (strengthened.isNil()) values[slot] = NIL; // We preserve the key so we can check it is nil
+		return strengthened;
+	}
+
+	/**
+	 * Get the value in a slot of the hash part, converting it to a strong reference if required.
+	 *
+	 * @param slot The slot to get.
+	 * @return The slot's value, or {@link Constants#NIL} if it is empty.
+	 */
+	private LuaValue value(int slot) {
+		Object value = values[slot];
+		if (value == NIL || !weakValues) return (LuaValue) value;
+
+		LuaValue strengthened = strengthen(value);
+		if (strengthened.isNil()) values[slot] = NIL;
+		return strengthened;
+	}
 	//endregion
 
 	//region Weak references
 
 	/**
-	 * Self-sent message to convert a value to its weak counterpart
+	 * Convert a value to its weak counterpart.
 	 *
 	 * @param value value to convert
+	 * @param slot  The slot this value will be stored in, either a hash slot or the complement of an array index.
 	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
 	 */
-	private static Object weaken(LuaValue value) {
+	private Object weaken(LuaValue value, int slot) {
 		switch (value.type()) {
 			case TFUNCTION:
 			case TTHREAD:
-			case TTABLE:
-				return new WeakReference<>(value);
-			case TUSERDATA:
-				return new WeakUserdata((LuaUserdata) value);
+			case TTABLE: {
+				ReferenceQueue<LuaValue> queue = weakQueue;
+				if (queue == null) queue = weakQueue = new ReferenceQueue<>();
+				return new WeakEntry(value, queue, slot);
+			}
+			case TUSERDATA: {
+				ReferenceQueue<LuaValue> queue = weakQueue;
+				if (queue == null) queue = weakQueue = new ReferenceQueue<>();
+				return new WeakUserdata((LuaUserdata) value, queue, slot);
+			}
 			default:
 				return value;
 		}
 	}
 
 	/**
-	 * Unwrap a LuaValue from a WeakReference and/or WeakUserdata.
+	 * Unwrap a LuaValue from a {@link WeakEntry}.
 	 *
 	 * @param ref reference to convert
-	 * @return LuaValue or null
-	 * @see #weaken(LuaValue)
+	 * @return LuaValue or {@link Constants#NIL} if it has been collected.
+	 * @see #weaken(LuaValue, int)
 	 */
-	@SuppressWarnings("unchecked")
 	static LuaValue strengthen(Object ref) {
-		if (ref instanceof WeakReference) {
-			LuaValue value = ((WeakReference<LuaValue>) ref).get();
-			return value == null ? NIL : value;
-		} else if (ref instanceof WeakUserdata) {
-			return ((WeakUserdata) ref).strongValue();
+		if (ref instanceof WeakEntry) {
+			return ((WeakEntry) ref).strongValue();
 		} else {
 			return (LuaValue) ref;
 		}
 	}
 
 	/**
-	 * Internal class to implement weak userdata values.
+	 * Update the slot of any weak references after an entry is moved to a new position in the hash part.
+	 *
+	 * @param slot The entry's new slot.
 	 */
-	private static final class WeakUserdata {
-		private WeakReference<LuaValue> ref;
-		private final WeakReference<Object> ob;
-		private final LuaTable mt;
-
-		private WeakUserdata(LuaUserdata value) {
-			ref = new WeakReference<>(value);
-			ob = new WeakReference<>(value.instance);
-			mt = value.metatable;
-		}
-
-		public LuaValue strongValue() {
-			LuaValue u = ref.get();
-			if (u != null) return u;
+	private void moveWeakSlot(int slot) {
+		if (keys[slot] instanceof WeakEntry) ((WeakEntry) keys[slot]).slot = slot;
+		if (values[slot] instanceof WeakEntry) ((WeakEntry) values[slot]).slot = slot;
+	}
 
-			Object o = ob.get();
-			if (o != null) {
-				LuaValue ud = userdataOf(o, mt);
-				ref = new WeakReference<>(ud);
-				return ud;
-			} else {
-				return NIL;
+	/**
+	 * Clear any entries whose key or value has been collected, as reported by the reference queue.
+	 *
+	 * Keys are left in place (as with any other removed entry), so that collision chains are preserved until the next
+	 * rehash removes them. If an entry has since been moved (such as by {@link #move(int, int, LuaTable, int)}), it
+	 * is skipped, and will instead be cleared the next time it is accessed.
+	 */
+	private void purgeWeakEntries() {
+		ReferenceQueue<LuaValue> queue = weakQueue;
+		if (queue == null) return;
+
+		Reference<? extends LuaValue> ref;
+		while ((ref = queue.poll()) != null) {
+			// Userdata may still be reachable via their underlying object.
+			if (!((WeakEntry) ref).strongValue().isNil()) continue;
+
+			int slot = ((WeakEntry) ref).slot;
+			if (slot < 0) {
+				int index = ~slot;
+				if (index < array.length && array[index] == ref) array[index] = NIL;
+			} else if (slot < keys.length && (keys[slot] == ref || values[slot] == ref)) {
+				values[slot] = NIL;
 			}
 		}
 	}
-	//endregion
 
 	/**
-	 * Represents a node in the hash element of the table.
+	 * A weak reference to a key or value, which records where it is stored so that it can be cleared once collected.
 	 */
-	private static final class Node {
-		private final boolean weakKey;
-		private final boolean weakValue;
-		Object value = NIL;
-		Object key = NIL;
-		int next = -1;
+	private static class WeakEntry extends WeakReference<LuaValue> {
+		int slot;
 
-		Node(boolean weakKey, boolean weakValue) {
-			this.weakKey = weakKey;
-			this.weakValue = weakValue;
+		WeakEntry(LuaValue value, ReferenceQueue<? super LuaValue> queue, int slot) {
+			super(value, queue);
+			this.slot = slot;
 		}
 
-		@Override
-		public String toString() {
-			String main = key + "=" + value;
-			if (next >= 0) main += "->" + next;
-			return main;
+		LuaValue strongValue() {
+			LuaValue value = get();
+			return value == null ? NIL : value;
 		}
+	}
 
-		/**
-		 * Get the current key, converting it to a strong reference if
-		 * required. If it is nil then it clears the key and value (marking it
-		 * as "dead").
-		 *
-		 * @return The entry's key.
-		 */
-		LuaValue key() {
-			Object key = this.key;
-			if (key == NIL || !weakKey) return (LuaValue) key;
+	/**
+	 * A weak reference to a userdata value. If the userdata is collected while the object it wraps is still
+	 * reachable, a new userdata is created for it.
+	 */
+	private static final class WeakUserdata extends WeakEntry {
+		private final WeakReference<Object> instance;
+		private final LuaTable metatable;
+		private WeakReference<LuaValue> recreated;
+
+		WeakUserdata(LuaUserdata value, ReferenceQueue<? super LuaValue> queue, int slot) {
+			super(value, queue, slot);
+			instance = new WeakReference<>(value.instance);
+			metatable = value.metatable;
+		}
 
-			LuaValue strengthened = strengthen(key);
-			if (strengthened.isNil()) this.value = NIL; // We preserve the key so we can check it is nil
+		@Override
+		LuaValue strongValue() {
+			LuaValue value = get();
+			if (value != null) return value;
 
-			return strengthened;
-		}
+			value = recreated == null ? null : recreated.get();
+			if (value != null) return value;
 
-		/**
-		 * Get the current value, converting it to a strong reference if required.
-		 *
-		 * @return The entry's value.
-		 */
-		LuaValue value() {
-			Object value = this.value;
-			if (value == NIL || !weakValue) return (LuaValue) value;
+			Object object = instance.get();
+			if (object == null) return NIL;
 
-			LuaValue strengthened = strengthen(value);
-			if (strengthened.isNil()) this.value = NIL;
-			return strengthened;
+			value = userdataOf(object, metatable);
+			recreated = new WeakReference<>(value);
+			return value;
 		}
 	}
+	//endregion
 }
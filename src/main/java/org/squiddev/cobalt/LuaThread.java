@@ -61,8 +61,10 @@ import static org.squiddev.cobalt.debug.DebugFrame.FLAG_YPCALL;
 public class LuaThread extends LuaValue {
 	/**
 	 * Interval in nanoseconds at which to check for lua threads that are no longer referenced.
-	 * This can be changed by Java startup code if desired.
+	 *
+	 * @deprecated This is no longer used. Blocked coroutines are interrupted as soon as they are garbage collected.
 	 */
+	@Deprecated
 	public static long orphanCheckInterval = TimeUnit.SECONDS.toNanos(30);
 
 	/**
@@ -135,7 +137,7 @@ public class LuaThread extends LuaValue {
 		super(Constants.TTHREAD);
 		this.state = new State(this, STATUS_RUNNING);
 		this.luaState = state;
-		this.debugState = new DebugState(state);
+		this.debugState = new DebugState(state, state.framePool);
 		this.env = env;
 		this.function = null;
 	}
@@ -152,7 +154,7 @@ public class LuaThread extends LuaValue {
 		if (func == null) throw new IllegalArgumentException("function cannot be null");
 		this.state = new State(this, STATUS_INITIAL);
 		this.luaState = state;
-		this.debugState = new DebugState(state);
+		this.debugState = new DebugState(state, state.framePool);
 		this.env = env;
 		this.function = func;
 	}
@@ -357,6 +359,7 @@ public class LuaThread extends LuaValue {
 		if (current.status != STATUS_RUNNING) {
 			throw new LuaError("cannot suspend a " + STATUS_NAMES[current.status] + " thread");
 		}
+		checkSuspend(state);
 
 		if (current.javaCount == 0) {
 			throw UnwindThrowable.suspend();
@@ -376,6 +379,10 @@ public class LuaThread extends LuaValue {
 		if (current.status != STATUS_RUNNING) {
 			throw new LuaError("cannot suspend a " + STATUS_NAMES[current.status] + " thread");
 		}
+		checkSuspend(state);
+		if (state.threader.inlineThread == Thread.currentThread()) {
+			throw new LuaError("cannot suspend main thread across a Java call");
+		}
 
 		try {
 			// Mark the child coroutine as "active", and transfer.
@@ -387,27 +394,59 @@ public class LuaThread extends LuaValue {
 		}
 	}
 
+	/**
+	 * Ensure the current thread can be suspended.
+	 *
+	 * When the main thread has blocked on the thread which called {@link #run(LuaThread, Varargs)}, that thread cannot
+	 * return from {@link #run(LuaThread, Varargs)} until the main thread is resumed, and so other coroutines may not
+	 * suspend. This can only happen when {@link LuaState.Builder#inlineMainThread(boolean)} is enabled.
+	 *
+	 * @param state The current lua state
+	 * @throws LuaError If the main thread is blocked on the calling thread.
+	 */
+	private static void checkSuspend(LuaState state) throws LuaError {
+		if (state.threader.inlineBlocked) throw new LuaError("cannot suspend while main thread is blocked");
+	}
+
 	private static Varargs transferControl(LuaState state, State thread, Varargs args) throws InterruptedException, LuaError {
 		YieldThreader threader = state.threader;
 
-		// Construct a lock to wait on.
+		// Construct a lock to wait on, and start watching for this coroutine being garbage collected.
 		if (thread.resumeLock == null) thread.resumeLock = threader.lock.newCondition();
+		thread.watch();
+
+		// If the main thread is running on (or blocked on) the thread which called run(), there's no runner waiting for
+		// a signal, so we must start the next coroutine on the executor ourselves.
+		boolean inline = threader.inlineThread == Thread.currentThread();
 
 		threader.lock.lockInterruptibly();
 		try {
+			thread.beginWait(state);
+
 			// Give the runner a signal, and start it off.
 			thread.needsThreadedResume = true;
 			threader.set(args);
-			threader.loop.signal();
+			if (inline || threader.inlineBlocked) {
+				if (inline) threader.inlineBlocked = true;
+				threader.execute(threader.task);
+			} else {
+				threader.loop.signal();
+			}
 
-			// Wait for us to be resumed.
-			while (thread.resumeLock.awaitNanos(orphanCheckInterval) <= 0) {
+			// Wait for us to be resumed. We'll be interrupted if this state is abandoned or this coroutine is
+			// garbage collected.
+			try {
+				thread.resumeLock.await();
+			} catch (InterruptedException e) {
 				if (state.abandoned) throw new InterruptedException("Abandoned state");
-				if (thread.owner.get() == null) throw new OrphanedThreadException();
+				if (thread.isOrphaned()) throw new OrphanedThreadException();
+				throw e;
 			}
 
 			return threader.unpack();
 		} finally {
+			thread.endWait(state);
+			if (inline) threader.inlineBlocked = false;
 			threader.lock.unlock();
 			thread.needsThreadedResume = false;
 		}
@@ -433,6 +472,23 @@ public class LuaThread extends LuaValue {
 		return run(thread.luaState, thread, null, args);
 	}
 
+	/**
+	 * Run a thread until it yields, suspends or finishes.
+	 *
+	 * If {@link LuaState.Builder#inlineMainThread(boolean)} is enabled, the main thread is run directly on the calling
+	 * thread, as it can never yield, and so will only leave the calling thread if it resumes another coroutine (which
+	 * may need to block). At that point we switch to running coroutines on the coroutine executor. Otherwise, and for
+	 * any other coroutine, we always run on the executor, so that the caller is never blocked by a coroutine which
+	 * yields or suspends.
+	 *
+	 * @param state    The current lua state
+	 * @param thread   The thread to run
+	 * @param function The function to run, if starting the main thread.
+	 * @param args     The arguments to run with.
+	 * @return The values the thread yielded or returned with, or {@code null} if it was suspended.
+	 * @throws LuaError             If the thread errored.
+	 * @throws InterruptedException If the state was abandoned while running.
+	 */
 	private static Varargs run(final LuaState state, LuaThread thread, LuaFunction function, Varargs args) throws LuaError, InterruptedException {
 		YieldThreader threader = state.threader;
 		threader.lock.lock();
@@ -442,8 +498,10 @@ public class LuaThread extends LuaValue {
 			threader.set(args);
 			threader.running = true;
 
+			boolean inline = threader.inlineMain && thread.isMainThread() && !thread.state.needsThreadedResume && threader.inlineThread == null;
+
 			Runnable task = new Runnable() {
-				LuaFunction func = function;
+				LuaFunction func = inline ? null : function;
 
 				@Override
 				public void run() {
@@ -460,7 +518,7 @@ public class LuaThread extends LuaValue {
 						LuaFunction function = func;
 						func = null;
 
-						Varargs res = loop(state, state.currentThread, function, threader.unpack());
+						Varargs res = loop(state, state.currentThread, function, threader.unpack(), false);
 
 						// Loop returned a value, which means the top-level coroutine yielded or terminated.
 						threader.set(res);
@@ -468,6 +526,14 @@ public class LuaThread extends LuaValue {
 						threader.loop.signal();
 					} catch (TransferredControlThrowable ignored) {
 						// Just die here: someone else is running now, but the coroutines are still being executed.
+					} catch (InterruptedError e) {
+						// This coroutine was garbage collected while blocked. Nothing is waiting for it, and someone
+						// else may be running, so just die here. Otherwise, treat it like any other error.
+						if (!(e.getCause() instanceof OrphanedThreadException)) {
+							threader.set(e);
+							threader.running = false;
+							threader.loop.signal();
+						}
 					} catch (Throwable e) {
 						// Loop threw a LuaError (the top-level coroutine errored) or threw an unknown exception
 						// (terminate everything).
@@ -480,6 +546,24 @@ public class LuaThread extends LuaValue {
 				}
 			};
 
+			threader.task = task;
+
+			if (inline) {
+				threader.inlineThread = Thread.currentThread();
+				try {
+					Varargs result = loop(state, thread, function, threader.unpack(), true);
+					threader.running = false;
+					return result;
+				} catch (TransferredControlThrowable ignored) {
+					// Another coroutine was resumed, so continue running on the executor.
+				} catch (Throwable e) {
+					threader.running = false;
+					throw e;
+				} finally {
+					threader.inlineThread = null;
+				}
+			}
+
 			while (threader.running && state.currentThread != null) {
 				threader.execute(task);
 				threader.loop.await();
@@ -493,7 +577,7 @@ public class LuaThread extends LuaValue {
 		}
 	}
 
-	static Varargs loop(final LuaState state, LuaThread thread, LuaFunction function, Varargs args) throws LuaError, TransferredControlThrowable {
+	static Varargs loop(final LuaState state, LuaThread thread, LuaFunction function, Varargs args, boolean inline) throws LuaError, TransferredControlThrowable {
 		YieldThreader threader = state.threader;
 
 		LuaError le = null;
@@ -574,6 +658,7 @@ public class LuaThread extends LuaValue {
 
 				// We've died, yield into the parent coroutine
 				threadState.status = STATUS_DEAD;
+				if (le == null) ds.recycle();
 				LuaThread previous = threadState.previousThread;
 				threadState.previousThread = null;
 				thread = previous;
@@ -603,6 +688,14 @@ public class LuaThread extends LuaValue {
 					next.state.previousThread = state.currentThread;
 					thread = next;
 					args = e.getArgs();
+
+					if (inline) {
+						// Other coroutines may block, so we don't want to run them on the caller's thread. Instead,
+						// continue running on the executor.
+						state.currentThread = next;
+						threader.set(args);
+						throw TransferredControlThrowable.INSTANCE;
+					}
 				}
 			}
 		} while (thread != null);
@@ -640,6 +733,27 @@ public class LuaThread extends LuaValue {
 		 */
 		final WeakReference<LuaThread> owner;
 
+		/**
+		 * A reference to the owner which is watched by the {@link OrphanReaper}. This is created the first time this
+		 * coroutine blocks, and must be kept alive for as long as it is blocked.
+		 */
+		WeakReference<LuaThread> watchedOwner;
+
+		/**
+		 * The Java thread which is blocked waiting for this coroutine to be resumed.
+		 */
+		private Thread waiter;
+
+		/**
+		 * Whether {@link #waiter} has been interrupted.
+		 */
+		private boolean interrupted;
+
+		/**
+		 * Whether the owner has been garbage collected, and so this coroutine can never be resumed.
+		 */
+		private boolean orphaned;
+
 		/**
 		 * The current status of this thread
 		 */
@@ -672,10 +786,82 @@ public class LuaThread extends LuaValue {
 			this.owner = new WeakReference<>(owner);
 			this.status = status;
 		}
+
+		/**
+		 * Start watching for this coroutine being garbage collected.
+		 *
+		 * @throws OrphanedThreadException If the coroutine has already been collected.
+		 * @see OrphanReaper
+		 */
+		void watch() throws OrphanedThreadException {
+			if (watchedOwner != null) return;
+
+			LuaThread owner = this.owner.get();
+			if (owner == null) throw new OrphanedThreadException();
+			watchedOwner = OrphanReaper.watch(owner, this);
+		}
+
+		/**
+		 * Mark the current Java thread as waiting for this coroutine to be resumed. This should always be followed by
+		 * {@link #endWait(LuaState)}, even if it throws.
+		 *
+		 * @param state The owning Lua state.
+		 * @throws InterruptedException If the state has been abandoned or this coroutine orphaned.
+		 */
+		void beginWait(LuaState state) throws InterruptedException {
+			state.threader.blocked.add(this);
+			synchronized (this) {
+				waiter = Thread.currentThread();
+				if (orphaned) throw new OrphanedThreadException();
+				if (state.abandoned) throw new InterruptedException("Abandoned state");
+			}
+		}
+
+		/**
+		 * Mark the current Java thread as no longer waiting for this coroutine.
+		 *
+		 * @param state The owning Lua state.
+		 */
+		void endWait(LuaState state) {
+			synchronized (this) {
+				waiter = null;
+
+				// We may have been interrupted after being resumed. Clear the flag, so it isn't seen by unrelated code.
+				if (interrupted) {
+					interrupted = false;
+					Thread.interrupted();
+				}
+			}
+			state.threader.blocked.remove(this);
+		}
+
+		/**
+		 * Interrupt the Java thread waiting for this coroutine to be resumed, if there is one.
+		 */
+		synchronized void interruptWaiter() {
+			if (waiter != null) {
+				interrupted = true;
+				waiter.interrupt();
+			}
+		}
+
+		/**
+		 * Mark this coroutine as orphaned, and stop waiting for it to be resumed.
+		 *
+		 * @see OrphanReaper
+		 */
+		synchronized void orphan() {
+			orphaned = true;
+			interruptWaiter();
+		}
+
+		synchronized boolean isOrphaned() {
+			return orphaned;
+		}
 	}
 
 	/**
-	 * Used inside {@link #loop(LuaState, LuaThread, LuaFunction, Varargs)} when
+	 * Used inside {@link #loop(LuaState, LuaThread, LuaFunction, Varargs, boolean)} when
 	 * this particular thread has transferred control elsewhere.
 	 */
 	private static class TransferredControlThrowable extends Throwable {
@@ -1317,7 +1317,7 @@ public abstract class LuaValue extends Varargs {
 		@Override
 		public Varargs asImmutable() {
 			Varargs rClone = r.asImmutable();
-			return rClone == r ? this : r;
+			return rClone == r ? this : new ArrayVarargs(v, rClone);
 		}
 
 		@Override
@@ -1325,6 +1325,18 @@ public abstract class LuaValue extends Varargs {
 			System.arraycopy(v, 0, array, offset, v.length);
 			r.fill(array, offset + v.length);
 		}
+
+		@Override
+		public void copyTo(LuaValue[] array, int offset, int start, int length) {
+			if (start < 1) {
+				super.copyTo(array, offset, start, length);
+				return;
+			}
+
+			int fromArray = Math.max(0, Math.min(length, v.length + 1 - start));
+			if (fromArray > 0) System.arraycopy(v, start - 1, array, offset, fromArray);
+			r.copyTo(array, offset + fromArray, start + fromArray - v.length, length - fromArray);
+		}
 	}
 
 	/**
@@ -1407,9 +1419,21 @@ public abstract class LuaValue extends Varargs {
 
 		@Override
 		public void fill(LuaValue[] array, int offset) {
-			System.arraycopy(v, offset, array, offset, length);
+			System.arraycopy(v, this.offset, array, offset, length);
 			more.fill(array, offset + length);
 		}
+
+		@Override
+		public void copyTo(LuaValue[] array, int offset, int start, int length) {
+			if (start < 1) {
+				super.copyTo(array, offset, start, length);
+				return;
+			}
+
+			int fromArray = Math.max(0, Math.min(length, this.length + 1 - start));
+			if (fromArray > 0) System.arraycopy(v, this.offset + start - 1, array, offset, fromArray);
+			more.copyTo(array, offset + fromArray, start + fromArray - this.length, length - fromArray);
+		}
 	}
 
 	/**
@@ -1466,5 +1490,17 @@ public abstract class LuaValue extends Varargs {
 			array[offset] = v1;
 			v2.fill(array, offset + 1);
 		}
+
+		@Override
+		public void copyTo(LuaValue[] array, int offset, int start, int length) {
+			if (start > 1) {
+				v2.copyTo(array, offset, start - 1, length);
+			} else if (start == 1 && length > 0) {
+				array[offset] = v1;
+				v2.copyTo(array, offset + 1, 1, length - 1);
+			} else {
+				super.copyTo(array, offset, start, length);
+			}
+		}
 	}
 }
@@ -56,7 +56,7 @@ public final class OperationHelper {
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(dLeft + dRight);
 		} else {
-			return arithMetatable(state, ADD, left, right, leftIdx, rightIdx);
+			return arithMetatable(state, CachedMetamethod.ADD, left, right, leftIdx, rightIdx);
 		}
 	}
 
@@ -75,7 +75,7 @@ public final class OperationHelper {
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(dLeft - dRight);
 		} else {
-			return arithMetatable(state, SUB, left, right, leftIdx, rightIdx);
+			return arithMetatable(state, CachedMetamethod.SUB, left, right, leftIdx, rightIdx);
 		}
 	}
 
@@ -92,7 +92,7 @@ public final class OperationHelper {
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(dLeft * dRight);
 		} else {
-			return arithMetatable(state, MUL, left, right, leftIdx, rightIdx);
+			return arithMetatable(state, CachedMetamethod.MUL, left, right, leftIdx, rightIdx);
 		}
 	}
 
@@ -105,7 +105,7 @@ public final class OperationHelper {
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(div(dLeft, dRight));
 		} else {
-			return arithMetatable(state, DIV, left, right, leftIdx, rightIdx);
+			return arithMetatable(state, CachedMetamethod.DIV, left, right, leftIdx, rightIdx);
 		}
 	}
 
@@ -118,7 +118,7 @@ public final class OperationHelper {
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(mod(dLeft, dRight));
 		} else {
-			return arithMetatable(state, MOD, left, right, leftIdx, rightIdx);
+			return arithMetatable(state, CachedMetamethod.MOD, left, right, leftIdx, rightIdx);
 		}
 	}
 
@@ -131,7 +131,7 @@ public final class OperationHelper {
 		if (checkNumber(left, dLeft = left.toDouble()) && checkNumber(right, dRight = right.toDouble())) {
 			return valueOf(Math.pow(dLeft, dRight));
 		} else {
-			return arithMetatable(state, POW, left, right, leftIdx, rightIdx);
+			return arithMetatable(state, CachedMetamethod.POW, left, right, leftIdx, rightIdx);
 		}
 	}
 
@@ -179,6 +179,24 @@ public final class OperationHelper {
 		return call(state, getMetatable(state, tag, left, right, leftStack, rightStack), left, right);
 	}
 
+	/**
+	 * Perform metatag processing for arithmetic operations, using a metatable's cache of absent metamethods.
+	 *
+	 * @param state      The current lua state
+	 * @param tag        The metatag to look up
+	 * @param left       The left operand value to perform the operation with
+	 * @param right      The other operand value to perform the operation with
+	 * @param leftStack  Stack index of the LHS
+	 * @param rightStack Stack index of the RHS
+	 * @return {@link LuaValue} resulting from metatag processing
+	 * @throws LuaError        if metatag was not defined for either operand or the underlying operator errored.
+	 * @throws UnwindThrowable If calling the metatable function yielded.
+	 * @see #arithMetatable(LuaState, LuaValue, LuaValue, LuaValue, int, int)
+	 */
+	public static LuaValue arithMetatable(LuaState state, CachedMetamethod tag, LuaValue left, LuaValue right, int leftStack, int rightStack) throws LuaError, UnwindThrowable {
+		return call(state, getMetatable(state, tag, left, right, leftStack, rightStack), left, right);
+	}
+
 	/**
 	 * Perform metatag processing for arithmetic operations.
 	 *
@@ -209,6 +227,34 @@ public final class OperationHelper {
 		return h;
 	}
 
+	/**
+	 * Find the metamethod for an arithmetic operation, using a metatable's cache of absent metamethods.
+	 *
+	 * @param state      The current lua state
+	 * @param tag        The metatag to look up
+	 * @param left       The left operand value to perform the operation with
+	 * @param right      The other operand value to perform the operation with
+	 * @param leftStack  Stack index of the LHS
+	 * @param rightStack Stack index of the RHS
+	 * @return {@link LuaValue} resulting from metatag processing
+	 * @throws LuaError if metatag was not defined for either operand
+	 * @see #getMetatable(LuaState, LuaValue, LuaValue, LuaValue, int, int)
+	 */
+	public static LuaValue getMetatable(LuaState state, CachedMetamethod tag, LuaValue left, LuaValue right, int leftStack, int rightStack) throws LuaError {
+		LuaValue h = left.metatag(state, tag);
+		if (h.isNil()) {
+			h = right.metatag(state, tag);
+			if (h.isNil()) {
+				if (left.isNumber()) {
+					left = right;
+					leftStack = rightStack;
+				}
+				throw ErrorFactory.operandError(state, left, "perform arithmetic on", leftStack);
+			}
+		}
+		return h;
+	}
+
 	/**
 	 * Perform metatag processing for concatenation operations.
 	 *
@@ -235,8 +281,8 @@ public final class OperationHelper {
 	}
 
 	public static LuaValue concatNonStrings(LuaState state, LuaValue left, LuaValue right, int leftStack, int rightStack) throws LuaError, UnwindThrowable {
-		LuaValue h = left.metatag(state, Constants.CONCAT);
-		if (h.isNil() && (h = right.metatag(state, Constants.CONCAT)).isNil()) {
+		LuaValue h = left.metatag(state, CachedMetamethod.CONCAT);
+		if (h.isNil() && (h = right.metatag(state, CachedMetamethod.CONCAT)).isNil()) {
 			if (left.isString()) {
 				throw ErrorFactory.operandError(state, right, "concatenate", rightStack);
 			} else {
@@ -267,8 +313,8 @@ public final class OperationHelper {
 			case TSTRING:
 				return left.strvalue().compare(right.strvalue()) < 0;
 			default:
-				LuaValue h = left.metatag(state, Constants.LT);
-				if (!h.isNil() && h == right.metatag(state, Constants.LT)) {
+				LuaValue h = left.metatag(state, CachedMetamethod.LT);
+				if (!h.isNil() && h == right.metatag(state, CachedMetamethod.LT)) {
 					return OperationHelper.call(state, h, left, right).toBoolean();
 				} else {
 					throw new LuaError("attempt to compare two " + left.typeName() + " values");
@@ -287,10 +333,10 @@ public final class OperationHelper {
 			case TSTRING:
 				return left.strvalue().compare(right.strvalue()) <= 0;
 			default:
-				LuaValue h = left.metatag(state, Constants.LE);
+				LuaValue h = left.metatag(state, CachedMetamethod.LE);
 				if (h.isNil()) {
-					h = left.metatag(state, Constants.LT);
-					if (!h.isNil() && h == right.metatag(state, Constants.LT)) {
+					h = left.metatag(state, CachedMetamethod.LT);
+					if (!h.isNil() && h == right.metatag(state, CachedMetamethod.LT)) {
 						DebugFrame frame = DebugHandler.getDebugState(state).getStackUnsafe();
 
 						frame.flags |= FLAG_LEQ;
@@ -299,7 +345,7 @@ public final class OperationHelper {
 
 						return result;
 					}
-				} else if (h == right.metatag(state, Constants.LE)) {
+				} else if (h == right.metatag(state, CachedMetamethod.LE)) {
 					return OperationHelper.call(state, h, left, right).toBoolean();
 				}
 
@@ -403,7 +449,7 @@ public final class OperationHelper {
 			if (!Double.isNaN(res)) return valueOf(-res);
 		}
 
-		LuaValue meta = value.metatag(state, Constants.UNM);
+		LuaValue meta = value.metatag(state, CachedMetamethod.UNM);
 		if (meta.isNil()) {
 			throw ErrorFactory.operandError(state, value, "perform arithmetic on", stack);
 		}
@@ -425,7 +471,7 @@ public final class OperationHelper {
 		if (function.isFunction()) {
 			return ((LuaFunction) function).call(state);
 		} else {
-			LuaValue meta = function.metatag(state, Constants.CALL);
+			LuaValue meta = function.metatag(state, CachedMetamethod.CALL);
 			if (!meta.isFunction()) throw ErrorFactory.operandError(state, function, "call", stack);
 
 			return ((LuaFunction) meta).call(state, function);
@@ -440,7 +486,7 @@ public final class OperationHelper {
 		if (function.isFunction()) {
 			return ((LuaFunction) function).call(state, arg);
 		} else {
-			LuaValue meta = function.metatag(state, Constants.CALL);
+			LuaValue meta = function.metatag(state, CachedMetamethod.CALL);
 			if (!meta.isFunction()) throw ErrorFactory.operandError(state, function, "call", stack);
 
 			return ((LuaFunction) meta).call(state, function, arg);
@@ -455,7 +501,7 @@ public final class OperationHelper {
 		if (function.isFunction()) {
 			return ((LuaFunction) function).call(state, arg1, arg2);
 		} else {
-			LuaValue meta = function.metatag(state, Constants.CALL);
+			LuaValue meta = function.metatag(state, CachedMetamethod.CALL);
 			if (!meta.isFunction()) throw ErrorFactory.operandError(state, function, "call", stack);
 
 			return ((LuaFunction) meta).call(state, function, arg1, arg2);
@@ -470,7 +516,7 @@ public final class OperationHelper {
 		if (function.isFunction()) {
 			return ((LuaFunction) function).call(state, arg1, arg2, arg3);
 		} else {
-			LuaValue meta = function.metatag(state, Constants.CALL);
+			LuaValue meta = function.metatag(state, CachedMetamethod.CALL);
 			if (!meta.isFunction()) throw ErrorFactory.operandError(state, function, "call", stack);
 
 			return ((LuaFunction) meta).invoke(state, ValueFactory.varargsOf(function, arg1, arg2, arg3)).first();
@@ -485,7 +531,7 @@ public final class OperationHelper {
 		if (function.isFunction()) {
 			return ((LuaFunction) function).invoke(state, args);
 		} else {
-			LuaValue meta = function.metatag(state, Constants.CALL);
+			LuaValue meta = function.metatag(state, CachedMetamethod.CALL);
 			if (!meta.isFunction()) throw ErrorFactory.operandError(state, function, "call", stack);
 
 			return ((LuaFunction) meta).invoke(state, ValueFactory.varargsOf(function, args));
@@ -605,7 +651,7 @@ public final class OperationHelper {
 	}
 
 	public static LuaValue toString(LuaState state, LuaValue value) throws LuaError, UnwindThrowable {
-		LuaValue h = value.metatag(state, Constants.TOSTRING);
+		LuaValue h = value.metatag(state, CachedMetamethod.TOSTRING);
 		return h.isNil() ? toStringDirect(value) : OperationHelper.call(state, h, value);
 	}
 
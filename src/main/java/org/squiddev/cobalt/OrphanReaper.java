@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Detects coroutines which are blocked on a Java thread, but have been garbage collected and so can never be resumed.
+ *
+ * When a coroutine first blocks, we {@link #watch(LuaThread, LuaThread.State) watch} its {@link LuaThread}. A single
+ * daemon thread waits for these to be collected, and then interrupts the Java thread blocked on that coroutine, which
+ * will throw an {@link OrphanedThreadException}. Blocked coroutines are never woken up otherwise.
+ *
+ * @see LuaThread.State
+ */
+final class OrphanReaper {
+	private static final ReferenceQueue<LuaThread> queue = new ReferenceQueue<>();
+
+	private OrphanReaper() {
+	}
+
+	/**
+	 * Start watching a coroutine.
+	 *
+	 * @param owner The coroutine to watch.
+	 * @param state The coroutine's state, which will be {@link LuaThread.State#orphan() orphaned} once {@code owner}
+	 *              has been collected.
+	 * @return The reference watching this coroutine. This must be kept alive by the state while it is blocked.
+	 */
+	static WeakReference<LuaThread> watch(LuaThread owner, LuaThread.State state) {
+		Reaper.ensureStarted();
+		return new Owner(owner, state);
+	}
+
+	private static final class Owner extends WeakReference<LuaThread> {
+		final LuaThread.State state;
+
+		Owner(LuaThread owner, LuaThread.State state) {
+			super(owner, queue);
+			this.state = state;
+		}
+	}
+
+	/**
+	 * Holder for the reaper thread, so it is only started once a coroutine has actually blocked.
+	 */
+	private static final class Reaper {
+		static {
+			Thread thread = new Thread(Reaper::run, "Cobalt-orphan-reaper");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		static void ensureStarted() {
+		}
+
+		private static void run() {
+			while (true) {
+				try {
+					((Owner) queue.remove()).state.orphan();
+				} catch (InterruptedException ignored) {
+					// We should never be interrupted, but keep running if we are.
+				}
+			}
+		}
+	}
+}
@@ -282,7 +282,7 @@ public class Print {
 	}
 
 	private static int getline(Prototype f, int pc) {
-		return pc > 0 && f.lineinfo != null && pc < f.lineinfo.length ? f.lineinfo[pc] : -1;
+		return pc > 0 ? f.lineAt(pc) : -1;
 	}
 
 	private static void printHeader(PrintStream ps, Prototype f) {
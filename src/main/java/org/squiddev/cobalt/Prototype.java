@@ -27,6 +27,8 @@ package org.squiddev.cobalt;
 import org.squiddev.cobalt.function.LocalVariable;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
 
+import java.util.Arrays;
+
 import static org.squiddev.cobalt.compiler.LoadState.getShortName;
 
 /**
@@ -38,6 +40,12 @@ import static org.squiddev.cobalt.compiler.LoadState.getShortName;
  * See documentatation on {@link LuaInterpretedFunction} for information on how to load
  * and execute a {@link Prototype}.
  *
+ * The interpreter never modifies a prototype, so one prototype may be run by several {@link LuaState}s on different
+ * threads at once, each with its own closures (for instance, created with
+ * {@link org.squiddev.cobalt.compiler.LuaC#load(Prototype, LuaTable)}). Any post-processing, such as
+ * {@link org.squiddev.cobalt.debug.DebugInfoCompactor}, must happen first: once a prototype is handed to other threads
+ * it should be marked with {@link #share()}, after which such modifications are rejected.
+ *
  * @see LuaInterpretedFunction
  */
 public final class Prototype {
@@ -46,7 +54,7 @@ public final class Prototype {
 	public int[] code;
 	/* functions defined inside the function */
 	public Prototype[] p;
-	/* map from opcodes to source lines */
+	/* map from opcodes to source lines. This is null once compacted, see lineAt. */
 	public int[] lineinfo;
 	/* information about local variables */
 	public LocalVariable[] locvars;
@@ -60,6 +68,59 @@ public final class Prototype {
 	public int is_vararg;
 	public int maxstacksize;
 
+	/**
+	 * Marker in {@link #lineDeltas} for an instruction whose line is stored in {@link #absLineInfo}.
+	 */
+	private static final byte ABSLINEINFO = Byte.MIN_VALUE;
+
+	/**
+	 * Maximum number of instructions between two {@link #absLineInfo} entries. This bounds the cost of
+	 * {@link #lineAt(int)} on compacted line information.
+	 */
+	private static final int MAXIWTHABS = 128;
+
+	/* compacted line info: the delta from the previous instruction's line */
+	private byte[] lineDeltas;
+	/* compacted line info: pairs of (pc, line) for instructions marked as ABSLINEINFO */
+	private int[] absLineInfo;
+
+	/* whether this prototype may be shared between threads, and so must not be modified. */
+	private volatile boolean shared;
+
+	/**
+	 * Mark this prototype and all of its children as shared. This should be done before the prototype is made
+	 * available to other threads. The write to this flag is volatile, so a thread which observes {@link #isShared()}
+	 * also sees the prototype's complete contents.
+	 *
+	 * @return This prototype.
+	 */
+	public Prototype share() {
+		if (shared) return this;
+		for (Prototype child : p) child.share();
+		shared = true;
+		return this;
+	}
+
+	/**
+	 * Determine whether this prototype has been shared.
+	 *
+	 * @return Whether this prototype is shared.
+	 * @see #share()
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Throw if this prototype has been {@link #share() shared}. This should be called by anything which modifies a
+	 * prototype after it has been loaded.
+	 *
+	 * @throws IllegalStateException If this prototype is shared.
+	 */
+	public void checkMutable() {
+		if (shared) throw new IllegalStateException("Cannot modify a shared prototype");
+	}
+
 	public LuaString sourceShort() {
 		return getShortName(source);
 	}
@@ -68,6 +129,101 @@ public final class Prototype {
 		return source + ":" + linedefined + "-" + lastlinedefined;
 	}
 
+	/**
+	 * Get the number of instructions with line information. This is either the number of instructions, or 0 if debug
+	 * information has been stripped.
+	 *
+	 * @return The length of the line information.
+	 */
+	public int lineInfoLength() {
+		if (lineinfo != null) return lineinfo.length;
+		return lineDeltas == null ? 0 : lineDeltas.length;
+	}
+
+	/**
+	 * Get the line of an instruction.
+	 *
+	 * @param pc The instruction's index.
+	 * @return The line of this instruction, or {@code -1} if not known.
+	 */
+	public int lineAt(int pc) {
+		int[] lineinfo = this.lineinfo;
+		if (lineinfo != null) return pc >= 0 && pc < lineinfo.length ? lineinfo[pc] : -1;
+
+		byte[] deltas = lineDeltas;
+		if (deltas == null || pc < 0 || pc >= deltas.length) return -1;
+
+		// Find the last absolute line at or before this instruction, and then apply deltas from there.
+		int[] abs = absLineInfo;
+		int lo = 0, hi = abs.length / 2 - 1, basePc = -1, line = 0;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (abs[mid * 2] <= pc) {
+				basePc = abs[mid * 2];
+				line = abs[mid * 2 + 1];
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+
+		for (int i = basePc + 1; i <= pc; i++) line += deltas[i];
+		return line;
+	}
+
+	/**
+	 * Get the line of every instruction, decoding it if it has been compacted.
+	 *
+	 * @return The line of every instruction. This should not be modified.
+	 */
+	public int[] lineInfo() {
+		int[] lineinfo = this.lineinfo;
+		if (lineinfo != null) return lineinfo;
+
+		int[] lines = new int[lineInfoLength()];
+		for (int pc = 0; pc < lines.length; pc++) lines[pc] = lineAt(pc);
+		return lines;
+	}
+
+	/**
+	 * Replace {@link #lineinfo} with a compact delta-encoded form.
+	 *
+	 * Each instruction's line is stored as a single byte relative to the previous instruction, with an absolute line
+	 * recorded every {@link #MAXIWTHABS} instructions or when the difference does not fit. This is normally 4 times
+	 * smaller, at the cost of making {@link #lineAt(int)} slightly slower. This only affects this prototype, not its
+	 * children, and should be done before the prototype is shared between threads.
+	 *
+	 * @throws IllegalStateException If this prototype is {@link #share() shared}.
+	 * @see org.squiddev.cobalt.debug.DebugInfoCompactor
+	 */
+	public void compactLineInfo() {
+		checkMutable();
+		int[] lineinfo = this.lineinfo;
+		if (lineinfo == null) return;
+
+		byte[] deltas = new byte[lineinfo.length];
+		int[] abs = new int[8];
+		int absCount = 0, previous = 0, sinceAbs = 0;
+		for (int pc = 0; pc < lineinfo.length; pc++) {
+			int delta = lineinfo[pc] - previous;
+			if (delta > ABSLINEINFO && delta <= Byte.MAX_VALUE && sinceAbs < MAXIWTHABS) {
+				deltas[pc] = (byte) delta;
+				sinceAbs++;
+			} else {
+				deltas[pc] = ABSLINEINFO;
+				if (absCount + 2 > abs.length) abs = Arrays.copyOf(abs, abs.length * 2);
+				abs[absCount++] = pc;
+				abs[absCount++] = lineinfo[pc];
+				sinceAbs = 0;
+			}
+			previous = lineinfo[pc];
+		}
+
+		absLineInfo = Arrays.copyOf(abs, absCount);
+		lineDeltas = deltas;
+		this.lineinfo = null;
+	}
+
 	/**
 	 * Get the name of a local variable.
 	 *
@@ -28,7 +28,7 @@ import java.util.Arrays;
 import java.util.List;
 
 public class ValueFactory {
-	private static final int MAX_DEPTH = 5;
+	private static final int MAX_DEPTH = Varargs.DepthVarargs.MAX_DEPTH;
 
 	/**
 	 * Convert java boolean to a {@link LuaValue}.
@@ -84,8 +84,31 @@ public abstract class Varargs {
 	 */
 	public abstract Varargs asImmutable();
 
+	/**
+	 * Copy every value in this varargs into an array.
+	 *
+	 * @param array  The array to copy into. This must have room for {@link #count()} values after {@code offset}.
+	 * @param offset The index in the array to start writing at.
+	 * @see #copyTo(LuaValue[], int, int, int)
+	 */
 	public abstract void fill(LuaValue[] array, int offset);
 
+	/**
+	 * Copy a range of values from this varargs into an array.
+	 *
+	 * Unlike repeated calls to {@link #arg(int)}, this does not need to walk the chain of varargs once for each value.
+	 * Any values past the end of this varargs are written as {@link Constants#NIL}.
+	 *
+	 * @param array  The array to copy into.
+	 * @param offset The index in the array to start writing at.
+	 * @param start  The first argument to copy, where 1 is the first argument.
+	 * @param length The number of values to write.
+	 * @see #fill(LuaValue[], int)
+	 */
+	public void copyTo(LuaValue[] array, int offset, int start, int length) {
+		for (int i = 0; i < length; i++) array[offset + i] = arg(start + i);
+	}
+
 	// -----------------------------------------------------------------------
 	// utilities to get specific arguments and type-check them.
 	// -----------------------------------------------------------------------
@@ -202,10 +225,24 @@ public abstract class Varargs {
 			case 1:
 				return new LuaValue.PairVarargs(arg(start), arg(end));
 		}
-		return end < start ? Constants.NONE : new SubVarargs(this, start, end);
+		if (end < start) return Constants.NONE;
+
+		if (DepthVarargs.depth(this) > DepthVarargs.MAX_DEPTH) {
+			// Avoid building ever longer chains when repeatedly taking subargs of subargs.
+			LuaValue[] values = new LuaValue[end + 1 - start];
+			copyTo(values, 0, start, values.length);
+			return new LuaValue.ArrayVarargs(values, Constants.NONE);
+		}
+
+		return new SubVarargs(this, start, end);
 	}
 
 	protected abstract static class DepthVarargs extends Varargs {
+		/**
+		 * The maximum depth of a chain of varargs. Any deeper, and the values are copied into a flat array instead.
+		 */
+		static final int MAX_DEPTH = 5;
+
 		protected final int depth;
 
 		protected DepthVarargs(int depth) {
@@ -228,7 +265,7 @@ public abstract class Varargs {
 		private final int end;
 
 		public SubVarargs(Varargs varargs, int start, int end) {
-			super(depth(varargs));
+			super(depth(varargs) + 1);
 			this.v = varargs;
 			this.start = start;
 			this.end = end;
@@ -253,8 +290,26 @@ public abstract class Varargs {
 
 		@Override
 		public void fill(LuaValue[] array, int offset) {
-			int size = end + 1 - start;
-			for (int i = 0; i < size; i++) array[offset + i] = v.arg(start + i);
+			v.copyTo(array, offset, start, end + 1 - start);
+		}
+
+		@Override
+		public void copyTo(LuaValue[] array, int offset, int start, int length) {
+			if (start < 1) {
+				super.copyTo(array, offset, start, length);
+				return;
+			}
+
+			int available = Math.max(0, Math.min(length, end + 2 - start - this.start));
+			if (available > 0) v.copyTo(array, offset, this.start + start - 1, available);
+			for (int i = available; i < length; i++) array[offset + i] = Constants.NIL;
+		}
+
+		@Override
+		public Varargs subargs(int start) {
+			// Slice the underlying varargs directly, rather than wrapping ourselves.
+			int newStart = this.start + start - 1;
+			return start <= 1 || end - newStart < 2 ? super.subargs(start) : new SubVarargs(v, newStart, end);
 		}
 
 		@Override
@@ -24,6 +24,8 @@
  */
 package org.squiddev.cobalt;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -38,8 +40,36 @@ public final class YieldThreader implements Executor {
 	volatile Varargs args;
 	volatile private Throwable error;
 
-	YieldThreader(Executor coroutineExecutor) {
+	/**
+	 * The task which runs coroutines on the executor, for the current call to {@link LuaThread#run(LuaThread, Varargs)}.
+	 */
+	volatile Runnable task;
+
+	/**
+	 * Whether the main thread may be run on the thread which called {@link LuaThread#run(LuaThread, Varargs)}.
+	 *
+	 * @see LuaState.Builder#inlineMainThread(boolean)
+	 */
+	final boolean inlineMain;
+
+	/**
+	 * The thread which called {@link LuaThread#run(LuaThread, Varargs)}, if the main thread is being run on it.
+	 */
+	volatile Thread inlineThread;
+
+	/**
+	 * Whether the main thread has blocked on {@link #inlineThread}, waiting for another coroutine to yield.
+	 */
+	volatile boolean inlineBlocked;
+
+	/**
+	 * Coroutines which are blocked on a Java thread, waiting to be resumed.
+	 */
+	final Set<LuaThread.State> blocked = ConcurrentHashMap.newKeySet();
+
+	YieldThreader(Executor coroutineExecutor, boolean inlineMain) {
 		this.executor = coroutineExecutor;
+		this.inlineMain = inlineMain;
 	}
 
 	@Override
@@ -0,0 +1,253 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.LuaTable;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * A read-only collection of precompiled chunks, stored in a single file.
+ *
+ * Bundles are designed to be memory-mapped: opening a bundle only reads its index, and each chunk is decoded straight
+ * from the mapped buffer the first time it is requested. Decoded {@link Prototype}s are cached and shared between
+ * every caller, and so are {@link Prototype#share() marked as shared}. String constants are shared between all chunks in the bundle.
+ *
+ * The format is a small header, followed by an index and then each chunk as written by {@link DumpState}:
+ *
+ * <pre>
+ * "\033LuaB" version:u8 count:i32
+ * (name:utf offset:i32 length:i32) * count
+ * chunk * count
+ * </pre>
+ *
+ * All integers in the header and index are big-endian. Offsets are relative to the start of the bundle.
+ *
+ * @see #write(OutputStream, Map, boolean)
+ * @see #open(Path)
+ */
+public final class BytecodeBundle {
+	private static final byte[] SIGNATURE = {27, 'L', 'u', 'a', 'B'};
+	private static final int VERSION = 1;
+
+	private final ByteBuffer buffer;
+	private final Map<String, Entry> entries;
+	private final ConstantPool constants = new ConstantPool();
+
+	private BytecodeBundle(ByteBuffer buffer, Map<String, Entry> entries) {
+		this.buffer = buffer;
+		this.entries = entries;
+	}
+
+	/**
+	 * Open a bundle by memory-mapping a file.
+	 *
+	 * The file is mapped read-only and may be closed as soon as this method returns. Modifying the file while the
+	 * bundle is in use results in undefined behaviour.
+	 *
+	 * @param path The path to the bundle.
+	 * @return The opened bundle.
+	 * @throws IOException      If the file could not be read.
+	 * @throws CompileException If the file is not a valid bundle.
+	 */
+	public static BytecodeBundle open(Path path) throws IOException, CompileException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Open a bundle from an existing buffer.
+	 *
+	 * @param buffer The buffer containing the bundle, from its position up to its limit. This buffer is not modified.
+	 * @return The opened bundle.
+	 * @throws CompileException If the buffer is not a valid bundle.
+	 */
+	public static BytecodeBundle of(ByteBuffer buffer) throws CompileException {
+		ByteBuffer contents = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+		try {
+			for (byte b : SIGNATURE) {
+				if (contents.get() != b) throw new CompileException("bad bundle signature");
+			}
+			if (contents.get() != VERSION) throw new CompileException("unsupported bundle version");
+
+			int count = contents.getInt();
+			if (count < 0) throw new CompileException("malformed bundle index");
+
+			Map<String, Entry> entries = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[contents.getShort() & 0xFFFF];
+				contents.get(name);
+				int offset = contents.getInt(), length = contents.getInt();
+				if (offset < 0 || length < 0 || offset > contents.limit() - length) {
+					throw new CompileException("malformed bundle index");
+				}
+
+				String nameStr = new String(name, StandardCharsets.UTF_8);
+				if (entries.put(nameStr, new Entry(offset, length)) != null) {
+					throw new CompileException("duplicate chunk " + nameStr + " in bundle");
+				}
+			}
+
+			return new BytecodeBundle(contents, Collections.unmodifiableMap(entries));
+		} catch (BufferUnderflowException e) {
+			throw new CompileException("truncated bundle");
+		}
+	}
+
+	/**
+	 * Get the names of every chunk in this bundle, in the order they were written.
+	 *
+	 * @return The names of all chunks.
+	 */
+	public Set<String> names() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Determine whether this bundle contains a chunk.
+	 *
+	 * @param name The chunk's name.
+	 * @return Whether this chunk exists.
+	 */
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * Get the prototype for a chunk, decoding it if needed.
+	 *
+	 * This is safe to call from multiple threads. Two threads may both decode the same chunk, but only one result will
+	 * be cached.
+	 *
+	 * @param name The chunk's name.
+	 * @return The decoded prototype, or {@code null} if no such chunk exists.
+	 * @throws CompileException If the chunk is malformed.
+	 */
+	public Prototype get(String name) throws CompileException {
+		Entry entry = entries.get(name);
+		if (entry == null) return null;
+
+		Prototype prototype = entry.prototype;
+		if (prototype != null) return prototype;
+
+		// Each decode gets its own view, so concurrent loads do not fight over the buffer's position.
+		ByteBuffer chunk = buffer.duplicate();
+		chunk.position(entry.offset).limit(entry.offset + entry.length);
+		try {
+			prototype = LoadState.loadBinaryChunk(chunk.slice(), valueOf(name), constants).share();
+		} catch (IOException | IllegalArgumentException e) {
+			throw new CompileException("malformed chunk " + name + " in bundle: " + e.getMessage());
+		}
+
+		synchronized (entry) {
+			if (entry.prototype == null) entry.prototype = prototype;
+			return entry.prototype;
+		}
+	}
+
+	/**
+	 * Load a chunk from this bundle, creating a new closure.
+	 *
+	 * @param name The chunk's name.
+	 * @param env  The environment to load the chunk in.
+	 * @return The loaded closure, or {@code null} if no such chunk exists.
+	 * @throws CompileException If the chunk is malformed.
+	 */
+	public LuaInterpretedFunction load(String name, LuaTable env) throws CompileException {
+		Prototype prototype = get(name);
+		if (prototype == null) return null;
+
+		LuaInterpretedFunction closure = new LuaInterpretedFunction(prototype, env);
+		closure.nilUpvalues();
+		return closure;
+	}
+
+	/**
+	 * Write a bundle containing several prototypes.
+	 *
+	 * @param output     The stream to write to.
+	 * @param prototypes The prototypes to write, and their chunk names.
+	 * @param strip      Whether debug information should be stripped.
+	 * @throws IOException If the output could not be written to.
+	 */
+	public static void write(OutputStream output, Map<String, Prototype> prototypes, boolean strip) throws IOException {
+		List<byte[]> names = new ArrayList<>(prototypes.size());
+		List<byte[]> chunks = new ArrayList<>(prototypes.size());
+		int headerSize = SIGNATURE.length + 1 + 4;
+		for (Map.Entry<String, Prototype> entry : prototypes.entrySet()) {
+			byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			if (name.length > 0xFFFF) throw new IllegalArgumentException("Chunk name is too long: " + entry.getKey());
+
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+			DumpState.dump(entry.getValue(), chunk, strip);
+
+			names.add(name);
+			chunks.add(chunk.toByteArray());
+			headerSize += 2 + name.length + 4 + 4;
+		}
+
+		DataOutputStream out = new DataOutputStream(output);
+		out.write(SIGNATURE);
+		out.writeByte(VERSION);
+		out.writeInt(names.size());
+
+		int offset = headerSize;
+		for (int i = 0; i < names.size(); i++) {
+			byte[] name = names.get(i), chunk = chunks.get(i);
+			out.writeShort(name.length);
+			out.write(name);
+			out.writeInt(offset);
+			out.writeInt(chunk.length);
+			offset += chunk.length;
+		}
+
+		for (byte[] chunk : chunks) out.write(chunk);
+		out.flush();
+	}
+
+	private static final class Entry {
+		final int offset;
+		final int length;
+		volatile Prototype prototype;
+
+		Entry(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -30,6 +30,10 @@ import org.squiddev.cobalt.function.LocalVariable;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
 
 import static org.squiddev.cobalt.Constants.*;
 
@@ -73,18 +77,60 @@ public final class BytecodeLoader {
 	private int luacNumberFormat;
 
 	/**
-	 * input stream from which we are loading
+	 * input stream from which we are loading, or {@code null} if loading from a {@link #buffer}.
 	 */
 	public final DataInputStream is;
 
+	/**
+	 * The buffer from which we are loading, or {@code null} if loading from a {@link #is stream}.
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Strings loaded so far, so identical constants are shared between functions in this chunk.
+	 */
+	private final HashMap<LuaString, LuaString> strings = new HashMap<>();
+
+	/**
+	 * The pool to share strings with other chunks, or {@code null}.
+	 */
+	private final ConstantPool constants;
+
 	/**
 	 * Private constructor for create a load state
 	 *
 	 * @param stream The stream to read from
 	 */
 	public BytecodeLoader(InputStream stream) {
+		this(stream, null);
+	}
 
+	/**
+	 * Create a load state which interns strings into a shared pool.
+	 *
+	 * @param stream    The stream to read from
+	 * @param constants The pool to intern strings into, or {@code null}.
+	 */
+	public BytecodeLoader(InputStream stream, ConstantPool constants) {
 		this.is = new DataInputStream(stream);
+		this.buffer = null;
+		this.constants = constants;
+	}
+
+	/**
+	 * Create a load state which reads directly from a buffer, such as a memory-mapped file.
+	 *
+	 * This avoids the per-field overhead of {@link DataInputStream}, reading integer arrays in bulk. The buffer's
+	 * position is advanced as the chunk is read, but its contents are never modified.
+	 *
+	 * @param buffer    The buffer to read from, positioned after the chunk's signature.
+	 * @param constants The pool to intern strings into, or {@code null}.
+	 * @see BytecodeBundle
+	 */
+	public BytecodeLoader(ByteBuffer buffer, ConstantPool constants) {
+		this.is = null;
+		this.buffer = buffer;
+		this.constants = constants;
 	}
 
 	private static final LuaValue[] NOVALUES = {};
@@ -98,12 +144,46 @@ public final class BytecodeLoader {
 	 */
 	private byte[] buf = new byte[512];
 
+	private int readByte() throws IOException {
+		if (buffer == null) return is.readByte();
+		try {
+			return buffer.get();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("unexpected end of chunk", e);
+		}
+	}
+
+	private int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+
+	private void readFully(byte[] bytes, int offset, int length) throws IOException {
+		if (buffer == null) {
+			is.readFully(bytes, offset, length);
+			return;
+		}
+
+		try {
+			buffer.get(bytes, offset, length);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("unexpected end of chunk", e);
+		}
+	}
+
 	/**
 	 * Load a 4-byte int value from the input stream
 	 *
 	 * @return the int value laoded.
 	 */
 	private int loadInt() throws IOException {
+		if (buffer != null) {
+			try {
+				return buffer.getInt();
+			} catch (BufferUnderflowException e) {
+				throw new IOException("unexpected end of chunk", e);
+			}
+		}
+
 		is.readFully(buf, 0, 4);
 		return luacLittleEndian ?
 			(buf[3] << 24) | ((0xff & buf[2]) << 16) | ((0xff & buf[1]) << 8) | (0xff & buf[0]) :
@@ -121,6 +201,16 @@ public final class BytecodeLoader {
 			return NOINTS;
 		}
 
+		if (buffer != null) {
+			if (n < 0 || buffer.remaining() < (long) n << 2) throw new IOException("unexpected end of chunk");
+
+			// The buffer's byte order matches the chunk's, so we can read the whole array directly.
+			int[] array = new int[n];
+			buffer.asIntBuffer().get(array);
+			buffer.position(buffer.position() + (n << 2));
+			return array;
+		}
+
 		// read all data at once
 		int m = n << 2;
 		if (buf.length < m) {
@@ -164,9 +254,25 @@ public final class BytecodeLoader {
 		if (size == 0) {
 			return null;
 		}
-		byte[] bytes = new byte[size];
-		is.readFully(bytes, 0, size);
-		return LuaString.valueOf(bytes, 0, bytes.length - 1);
+		LuaString string;
+		if (buffer != null) {
+			// Copy just the string's contents, skipping the trailing NUL.
+			byte[] bytes = new byte[size - 1];
+			readFully(bytes, 0, size - 1);
+			readByte();
+			string = LuaString.valueOf(bytes);
+		} else {
+			byte[] bytes = new byte[size];
+			is.readFully(bytes, 0, size);
+			string = LuaString.valueOf(bytes, 0, bytes.length - 1);
+		}
+
+		LuaString existing = strings.get(string);
+		if (existing != null) return existing;
+
+		if (constants != null) string = constants.intern(string);
+		strings.put(string, string);
+		return string;
 	}
 
 	/**
@@ -219,12 +325,12 @@ public final class BytecodeLoader {
 		int n = loadInt();
 		LuaValue[] values = n > 0 ? new LuaValue[n] : NOVALUES;
 		for (int i = 0; i < n; i++) {
-			switch (is.readByte()) {
+			switch (readByte()) {
 				case TNIL:
 					values[i] = Constants.NIL;
 					break;
 				case TBOOLEAN:
-					values[i] = (0 != is.readUnsignedByte() ? Constants.TRUE : Constants.FALSE);
+					values[i] = (0 != readUnsignedByte() ? Constants.TRUE : Constants.FALSE);
 					break;
 				case TINT:
 					values[i] = LuaInteger.valueOf(loadInt());
@@ -288,10 +394,10 @@ public final class BytecodeLoader {
 		}
 		f.linedefined = loadInt();
 		f.lastlinedefined = loadInt();
-		f.nups = is.readUnsignedByte();
-		f.numparams = is.readUnsignedByte();
-		f.is_vararg = is.readUnsignedByte();
-		f.maxstacksize = is.readUnsignedByte();
+		f.nups = readUnsignedByte();
+		f.numparams = readUnsignedByte();
+		f.is_vararg = readUnsignedByte();
+		f.maxstacksize = readUnsignedByte();
 		f.code = loadIntArray();
 		loadConstants(f);
 		loadDebug(f);
@@ -310,16 +416,17 @@ public final class BytecodeLoader {
 	 * @throws CompileException If the bytecode is invalid.
 	 */
 	public void loadHeader() throws IOException, CompileException {
-		int luacVersion = is.readByte();
+		int luacVersion = readByte();
 		if (luacVersion != LUAC_VERSION) throw new CompileException("unsupported luac version");
 
-		int luacFormat = is.readByte();
-		luacLittleEndian = (0 != is.readByte());
-		int luacSizeofInt = is.readByte();
-		luacSizeofSizeT = is.readByte();
-		int luacSizeofInstruction = is.readByte();
-		int luacSizeofLuaNumber = is.readByte();
-		luacNumberFormat = is.readByte();
+		int luacFormat = readByte();
+		luacLittleEndian = (0 != readByte());
+		int luacSizeofInt = readByte();
+		luacSizeofSizeT = readByte();
+		int luacSizeofInstruction = readByte();
+		int luacSizeofLuaNumber = readByte();
+		luacNumberFormat = readByte();
+		if (buffer != null) buffer.order(luacLittleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
 
 		// check format
 		switch (luacNumberFormat) {
@@ -0,0 +1,72 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.LuaString;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of string constants, shared between several compiled or loaded chunks.
+ *
+ * Each chunk already shares identical string constants between its functions. Passing the same pool when loading
+ * several chunks extends this to every chunk, so common constants (such as {@code "type"} or field names) are only kept
+ * once, and comparing them is a reference check.
+ *
+ * Strings are only weakly held, so a pool may be kept for the lifetime of the program without leaking constants from
+ * unloaded code. This class is thread-safe.
+ *
+ * @see LuaC#LuaC(ConstantPool)
+ * @see BytecodeBundle
+ */
+public final class ConstantPool {
+	private final Map<LuaString, WeakReference<LuaString>> strings = new WeakHashMap<>();
+
+	/**
+	 * Get the canonical instance of a string.
+	 *
+	 * @param string The string to intern. This must not be backed by a mutable buffer.
+	 * @return The pooled string equal to {@code string}, or {@code string} itself if there is none.
+	 */
+	public synchronized LuaString intern(LuaString string) {
+		WeakReference<LuaString> existingRef = strings.get(string);
+		LuaString existing = existingRef == null ? null : existingRef.get();
+		if (existing != null) return existing;
+
+		strings.put(string, new WeakReference<>(string));
+		return string;
+	}
+
+	/**
+	 * Get the number of strings in this pool.
+	 *
+	 * @return The number of strings in this pool. This may include strings which are no longer used.
+	 */
+	public synchronized int size() {
+		return strings.size();
+	}
+}
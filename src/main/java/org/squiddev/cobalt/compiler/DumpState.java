@@ -206,10 +206,11 @@ public class DumpState {
 
 	void dumpDebug(final Prototype f) throws IOException {
 		int i, n;
-		n = (strip) ? 0 : f.lineinfo.length;
+		int[] lineinfo = f.lineInfo();
+		n = (strip) ? 0 : lineinfo.length;
 		dumpInt(n);
 		for (i = 0; i < n; i++) {
-			dumpInt(f.lineinfo[i]);
+			dumpInt(lineinfo[i]);
 		}
 		n = (strip) ? 0 : f.locvars.length;
 		dumpInt(n);
@@ -148,6 +148,7 @@ public class LexState {
 	private byte decpoint;  /* locale decimal point */
 	public int nCcalls;
 	private final HashMap<LuaString, LuaString> strings = new HashMap<>();
+	private final ConstantPool constants;
 
 	/* ORDER RESERVED */
 	private final static String[] luaX_tokens = {
@@ -207,8 +208,13 @@ public class LexState {
 	}
 
 	public LexState(InputStream stream) {
+		this(stream, null);
+	}
+
+	public LexState(InputStream stream, ConstantPool constants) {
 		this.z = stream;
 		this.buff = new byte[32];
+		this.constants = constants;
 	}
 
 	private void nextChar() {
@@ -299,6 +305,7 @@ public class LexState {
 			byte[] copy = new byte[len];
 			System.arraycopy(bytes, offset, copy, 0, len);
 			v = LuaString.valueOf(copy);
+			if (constants != null) v = constants.intern(v);
 			strings.put(v, v);
 		}
 		return v;
@@ -1492,7 +1499,7 @@ public class LexState {
 		}
 	}
 
-	private static Priority[] priority = {  /* ORDER OPR */
+	private static final Priority[] priority = {  /* ORDER OPR */
 		new Priority(6, 6), new Priority(6, 6), new Priority(7, 7), new Priority(7, 7), new Priority(7, 7),  /* `+' `-' `/' `%' */
 		new Priority(10, 9), new Priority(5, 4),                 /* power and concat (right associative) */
 		new Priority(3, 3), new Priority(3, 3),                  /* equality and inequality */
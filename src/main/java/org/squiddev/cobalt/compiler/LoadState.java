@@ -35,6 +35,7 @@ import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
 
@@ -144,6 +145,23 @@ public final class LoadState {
 	 * @throws CompileException         If the stream cannot be loaded.
 	 */
 	public static Prototype loadBinaryChunk(int firstByte, InputStream stream, LuaString name) throws IOException, CompileException {
+		return loadBinaryChunk(firstByte, stream, name, null);
+	}
+
+	/**
+	 * Load lua thought to be a binary chunk from its first byte from an input stream, sharing string constants with
+	 * other chunks.
+	 *
+	 * @param firstByte the first byte of the input stream
+	 * @param stream    InputStream to read, after having read the first byte already
+	 * @param name      Name to apply to the loaded chunk
+	 * @param constants The pool to intern string constants into, or {@code null}.
+	 * @return {@link Prototype} that was loaded
+	 * @throws IllegalArgumentException If the signature is bac
+	 * @throws IOException              If an IOException occurs
+	 * @throws CompileException         If the stream cannot be loaded.
+	 */
+	public static Prototype loadBinaryChunk(int firstByte, InputStream stream, LuaString name, ConstantPool constants) throws IOException, CompileException {
 		name = getSourceName(name);
 		// check rest of signature
 		if (firstByte != LUA_SIGNATURE[0]
@@ -154,7 +172,31 @@ public final class LoadState {
 		}
 
 		// load file as a compiled chunk
-		BytecodeLoader s = new BytecodeLoader(stream);
+		BytecodeLoader s = new BytecodeLoader(stream, constants);
+		s.loadHeader();
+		return s.loadFunction(name);
+	}
+
+	/**
+	 * Load a binary chunk directly from a buffer, such as a memory-mapped file.
+	 *
+	 * @param buffer    Buffer to read from. This will be advanced to the end of the chunk.
+	 * @param name      Name to apply to the loaded chunk
+	 * @param constants The pool to intern string constants into, or {@code null}.
+	 * @return {@link Prototype} that was loaded
+	 * @throws IllegalArgumentException If the signature is bad
+	 * @throws IOException              If the chunk is truncated
+	 * @throws CompileException         If the buffer cannot be loaded.
+	 * @see BytecodeBundle
+	 */
+	public static Prototype loadBinaryChunk(ByteBuffer buffer, LuaString name, ConstantPool constants) throws IOException, CompileException {
+		name = getSourceName(name);
+		if (buffer.remaining() < LUA_SIGNATURE.length) throw new IllegalArgumentException("bad signature");
+		for (byte b : LUA_SIGNATURE) {
+			if (buffer.get() != b) throw new IllegalArgumentException("bad signature");
+		}
+
+		BytecodeLoader s = new BytecodeLoader(buffer, constants);
 		s.loadHeader();
 		return s.loadFunction(name);
 	}
@@ -35,6 +35,12 @@ import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
 import static org.squiddev.cobalt.compiler.LoadState.checkMode;
@@ -169,15 +175,31 @@ public class LuaC implements LuaCompiler {
 		return a;
 	}
 
+	private final ConstantPool constants;
+
 	private LuaC() {
+		this(null);
+	}
+
+	/**
+	 * Create a compiler which shares string constants between every chunk it loads.
+	 *
+	 * @param constants The pool to intern string constants into, or {@code null} to only share them within a chunk.
+	 */
+	public LuaC(ConstantPool constants) {
+		this.constants = constants;
 	}
 
 	/**
-	 * Load into a Closure or LuaFunction, with the supplied initial environment
+	 * Load into a Closure or LuaFunction, with the supplied initial environment.
+	 *
+	 * Unlike {@link #compile(InputStream, LuaString, LuaString, ConstantPool)}, this also shrinks each function's
+	 * stack with {@link StackCompactor}, so the resulting bytecode may differ from that produced by PUC Lua.
 	 */
 	@Override
 	public LuaFunction load(InputStream stream, LuaString name, LuaString mode, LuaTable env) throws IOException, CompileException {
-		Prototype p = compile(stream, name, mode);
+		Prototype p = compile(stream, name, mode, constants);
+		StackCompactor.compact(p, null);
 		LuaInterpretedFunction closure = new LuaInterpretedFunction(p, env);
 		closure.nilUpvalues();
 		return closure;
@@ -201,21 +223,104 @@ public class LuaC implements LuaCompiler {
 	}
 
 	public static Prototype compile(InputStream stream, LuaString name, LuaString mode) throws IOException, CompileException {
+		return compile(stream, name, mode, null);
+	}
+
+	/**
+	 * Compile a prototype or load as a binary chunk, sharing string constants with other chunks.
+	 *
+	 * @param stream    The stream to read
+	 * @param name      Name of the chunk
+	 * @param mode      The allowed chunk types, or {@code null} to allow any.
+	 * @param constants The pool to intern string constants into, or {@code null}.
+	 * @return The compiled code
+	 * @throws IOException      On stream read errors
+	 * @throws CompileException If there is a syntax error.
+	 */
+	public static Prototype compile(InputStream stream, LuaString name, LuaString mode, ConstantPool constants) throws IOException, CompileException {
 		int firstByte = stream.read();
 		if (firstByte == '\033') {
 			checkMode(mode, "binary");
-			return LoadState.loadBinaryChunk(firstByte, stream, name);
+			return LoadState.loadBinaryChunk(firstByte, stream, name, constants);
 		} else {
 			checkMode(mode, "text");
-			return luaY_parser(firstByte, stream, name);
+			return luaY_parser(firstByte, stream, name, constants);
 		}
 	}
 
+	/**
+	 * Compile several independent chunks in parallel, using the {@link ForkJoinPool#commonPool() common pool}.
+	 *
+	 * @param sources The chunks to compile, mapping each chunk name to its contents.
+	 * @return The compiled prototypes, in the same order as {@code sources}.
+	 * @throws IOException      On stream read errors
+	 * @throws CompileException If any chunk has a syntax error.
+	 * @see #compileAll(Map, ForkJoinPool)
+	 */
+	public static Map<String, Prototype> compileAll(Map<String, InputStream> sources) throws IOException, CompileException {
+		return compileAll(sources, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compile several independent chunks in parallel.
+	 *
+	 * The compiler holds no shared mutable state, so each chunk is parsed on its own task. The resulting prototypes are
+	 * not tied to any {@link LuaState}, and so may be instantiated in any number of states afterwards.
+	 *
+	 * If several chunks fail to compile, the error from the first failing chunk (in iteration order) is thrown. Streams
+	 * are not closed.
+	 *
+	 * @param sources The chunks to compile, mapping each chunk name to its contents.
+	 * @param pool    The pool to compile on.
+	 * @return The compiled prototypes, in the same order as {@code sources}.
+	 * @throws IOException      On stream read errors
+	 * @throws CompileException If any chunk has a syntax error.
+	 */
+	public static Map<String, Prototype> compileAll(Map<String, InputStream> sources, ForkJoinPool pool) throws IOException, CompileException {
+		return compileAll(sources, pool, null);
+	}
+
+	/**
+	 * Compile several independent chunks in parallel, sharing string constants between them.
+	 *
+	 * @param sources   The chunks to compile, mapping each chunk name to its contents.
+	 * @param pool      The pool to compile on.
+	 * @param constants The pool to intern string constants into, or {@code null}.
+	 * @return The compiled prototypes, in the same order as {@code sources}.
+	 * @throws IOException      On stream read errors
+	 * @throws CompileException If any chunk has a syntax error.
+	 * @see #compileAll(Map, ForkJoinPool)
+	 */
+	public static Map<String, Prototype> compileAll(Map<String, InputStream> sources, ForkJoinPool pool, ConstantPool constants) throws IOException, CompileException {
+		List<CompileTask> tasks = new ArrayList<>(sources.size());
+		for (Map.Entry<String, InputStream> source : sources.entrySet()) {
+			CompileTask task = new CompileTask(source.getValue(), valueOf(source.getKey()), constants);
+			pool.execute(task);
+			tasks.add(task);
+		}
+
+		Map<String, Prototype> result = new LinkedHashMap<>();
+		int i = 0;
+		try {
+			for (String name : sources.keySet()) {
+				CompileTask task = tasks.get(i++);
+				task.join();
+				if (task.error instanceof IOException) throw (IOException) task.error;
+				if (task.error instanceof CompileException) throw (CompileException) task.error;
+				result.put(name, task.result);
+			}
+		} finally {
+			for (; i < tasks.size(); i++) tasks.get(i).cancel(false);
+		}
+
+		return result;
+	}
+
 	/**
 	 * Parse the input
 	 */
-	private static Prototype luaY_parser(int firstByte, InputStream z, LuaString name) throws CompileException {
-		LexState lexstate = new LexState(z);
+	private static Prototype luaY_parser(int firstByte, InputStream z, LuaString name, ConstantPool constants) throws CompileException {
+		LexState lexstate = new LexState(z, constants);
 		FuncState funcstate = new FuncState();
 		// lexstate.buff = buff;
 		lexstate.setinput(firstByte, z, name);
@@ -236,4 +341,28 @@ public class LuaC implements LuaCompiler {
 	public LuaFunction load(Prototype p, LuaTable env) {
 		return new LuaInterpretedFunction(p, env);
 	}
+
+	@SuppressWarnings("serial")
+	private static final class CompileTask extends RecursiveAction {
+		private final InputStream stream;
+		private final LuaString name;
+		private final ConstantPool constants;
+		Prototype result;
+		Exception error;
+
+		CompileTask(InputStream stream, LuaString name, ConstantPool constants) {
+			this.stream = stream;
+			this.name = name;
+			this.constants = constants;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				result = compile(stream, name, null, constants);
+			} catch (IOException | CompileException e) {
+				error = e;
+			}
+		}
+	}
 }
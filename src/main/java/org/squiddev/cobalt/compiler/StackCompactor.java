@@ -0,0 +1,185 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.LocalVariable;
+
+import java.util.PriorityQueue;
+
+import static org.squiddev.cobalt.Lua.*;
+
+/**
+ * Lowers each function's {@link Prototype#maxstacksize} to the registers it actually uses.
+ *
+ * The register allocator in {@link FuncState} follows PUC Lua closely, which reserves registers that Cobalt's
+ * interpreter never touches (for instance, the extra call slots for generic {@code for} loops). As every call
+ * allocates and clears a frame of {@code maxstacksize} slots, trimming unused registers makes calls cheaper.
+ *
+ * The new size covers every register named by an instruction, all parameters and the {@code arg} table, and every
+ * local variable visible to the debug library.
+ *
+ * This is applied to every chunk loaded through {@link LuaC#load LuaC.load}. {@link LuaC#compile LuaC.compile}
+ * leaves prototypes as PUC Lua would generate them, so a {@link Listener} may be used to gather statistics:
+ *
+ * <pre>{@code
+ * Prototype proto = LuaC.compile(stream, "@file.lua");
+ * StackCompactor.compact(proto, (p, before, after) -> System.out.println(p + ": " + before + " => " + after));
+ * }</pre>
+ */
+public final class StackCompactor {
+	/**
+	 * Receives the stack size of each function before and after compaction.
+	 */
+	@FunctionalInterface
+	public interface Listener {
+		/**
+		 * Called after a function has been compacted.
+		 *
+		 * @param prototype The compacted function.
+		 * @param before    The original stack size.
+		 * @param after     The new stack size.
+		 */
+		void onCompact(Prototype prototype, int before, int after);
+	}
+
+	private StackCompactor() {
+	}
+
+	/**
+	 * Compact a function and all functions nested within it.
+	 *
+	 * @param prototype The function to compact.
+	 * @param listener  The listener to report new stack sizes to, or {@code null}.
+	 * @throws IllegalStateException If the prototype has been {@link Prototype#share() shared}.
+	 */
+	public static void compact(Prototype prototype, Listener listener) {
+		prototype.checkMutable();
+		int before = prototype.maxstacksize;
+		int after = Math.min(before, requiredStackSize(prototype));
+		prototype.maxstacksize = after;
+		if (listener != null) listener.onCompact(prototype, before, after);
+
+		for (Prototype child : prototype.p) compact(child, listener);
+	}
+
+	/**
+	 * Compute the number of registers a function needs.
+	 *
+	 * @param prototype The function to check.
+	 * @return The minimum stack size for this function.
+	 */
+	public static int requiredStackSize(Prototype prototype) {
+		int[] code = prototype.code;
+
+		// The parameters and arg table are always written by the interpreter.
+		int max = prototype.numparams + ((prototype.is_vararg & VARARG_HASARG) != 0 ? 1 : 0) - 1;
+
+		for (int pc = 0; pc < code.length; pc++) {
+			int i = code[pc];
+			int op = GET_OPCODE(i);
+			int a = GETARG_A(i);
+
+			// The debug library's symbolic execution expects A to be a valid register for every instruction.
+			max = Math.max(max, a);
+
+			if (getOpMode(op) == iABC) {
+				max = Math.max(max, argRegister(GETARG_B(i), getBMode(op)));
+				max = Math.max(max, argRegister(GETARG_C(i), getCMode(op)));
+			}
+
+			switch (op) {
+				case OP_SELF:
+					max = Math.max(max, a + 1);
+					break;
+				case OP_FORLOOP:
+				case OP_FORPREP:
+					max = Math.max(max, a + 3);
+					break;
+				case OP_TFORLOOP:
+					max = Math.max(max, a + 2 + GETARG_C(i));
+					break;
+				case OP_CALL:
+				case OP_TAILCALL: {
+					int b = GETARG_B(i), c = GETARG_C(i);
+					if (b != 0) max = Math.max(max, a + b - 1);
+					if (c != 0) max = Math.max(max, a + c - 2);
+					break;
+				}
+				case OP_RETURN:
+				case OP_VARARG: {
+					int b = GETARG_B(i);
+					if (b != 0) max = Math.max(max, a + b - 2);
+					break;
+				}
+				case OP_SETLIST: {
+					int b = GETARG_B(i);
+					if (b != 0) max = Math.max(max, a + b);
+					// A C of 0 means the next "instruction" is the real C, so skip it.
+					if (GETARG_C(i) == 0) pc++;
+					break;
+				}
+				default:
+					break;
+			}
+		}
+
+		return Math.max(max + 1, activeLocals(prototype));
+	}
+
+	private static int argRegister(int value, int mode) {
+		switch (mode) {
+			case OpArgR:
+				return value;
+			case OpArgK:
+				return ISK(value) ? -1 : value;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Get the maximum number of locals in scope at once. The debug library can read and write any of these, even if no
+	 * instruction refers to them.
+	 *
+	 * @param prototype The function to check.
+	 * @return The maximum number of active locals.
+	 */
+	private static int activeLocals(Prototype prototype) {
+		LocalVariable[] locals = prototype.locvars;
+		if (locals == null) return 0;
+
+		// Locals are sorted by when they come into scope, so we just need to track which are still live.
+		PriorityQueue<Integer> ends = new PriorityQueue<>();
+		int max = 0;
+		for (LocalVariable local : locals) {
+			while (!ends.isEmpty() && ends.peek() <= local.startpc) ends.poll();
+			if (local.startpc < local.endpc) ends.add(local.endpc);
+			max = Math.max(max, ends.size());
+		}
+
+		return max;
+	}
+}
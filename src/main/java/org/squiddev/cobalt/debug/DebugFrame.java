@@ -204,8 +204,7 @@ public final class DebugFrame {
 	 */
 	public int currentLine() {
 		if (closure == null) return -1;
-		int[] li = closure.getPrototype().lineinfo;
-		return li == null || pc < 0 || pc >= li.length ? -1 : li[pc];
+		return closure.getPrototype().lineAt(pc);
 	}
 
 	/**
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.debug;
+
+/**
+ * A bounded pool of {@link DebugFrame} stacks, shared between the coroutines of a single
+ * {@link org.squiddev.cobalt.LuaState}.
+ *
+ * Every coroutine needs its own stack of debug frames. Rather than allocating a new stack for each short-lived
+ * coroutine, the stacks of coroutines which have finished are returned to this pool, and then reused by the next
+ * coroutine to be started.
+ *
+ * This is not thread safe: it relies on only one coroutine in a state running at once.
+ *
+ * @see DebugState#recycle()
+ */
+public final class DebugFramePool {
+	/**
+	 * The default number of stacks which will be kept.
+	 */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * The largest stack which will be kept. Larger stacks are discarded, so that one deeply recursive coroutine does not
+	 * keep lots of frames alive.
+	 */
+	private static final int MAX_STACK_SIZE = 64;
+
+	private final DebugFrame[][] stacks;
+	private int size;
+
+	public DebugFramePool() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public DebugFramePool(int capacity) {
+		if (capacity < 0) throw new IllegalArgumentException("capacity must be >= 0");
+		stacks = new DebugFrame[capacity][];
+	}
+
+	/**
+	 * Take a stack from this pool.
+	 *
+	 * @return A stack of cleared frames, or {@code null} if the pool is empty.
+	 */
+	DebugFrame[] take() {
+		if (size == 0) return null;
+
+		DebugFrame[] stack = stacks[--size];
+		stacks[size] = null;
+		return stack;
+	}
+
+	/**
+	 * Return a stack to this pool. All frames in the stack must have been cleared.
+	 *
+	 * @param stack The stack to return.
+	 */
+	void release(DebugFrame[] stack) {
+		if (size < stacks.length && stack.length <= MAX_STACK_SIZE) stacks[size++] = stack;
+	}
+
+	/**
+	 * Get the number of stacks currently in this pool.
+	 *
+	 * @return The number of pooled stacks.
+	 */
+	public int size() {
+		return size;
+	}
+}
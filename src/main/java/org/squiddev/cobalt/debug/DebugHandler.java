@@ -105,13 +105,11 @@ public class DebugHandler {
 			if ((di.flags & FLAG_HOOKYIELD_LINE) == 0) {
 				if (ds.hookline && di.closure != null) {
 					Prototype prototype = di.closure.getPrototype();
-					int[] lineInfo = prototype.lineinfo;
-					int newLine = lineInfo != null && pc >= 0 && pc < lineInfo.length ? lineInfo[pc] : -1;
+					int newLine = prototype.lineAt(pc);
 					int oldPc = di.oldPc;
 
 					// call linehook when enter a new function, when jump back (loop), or when enter a new line
-					if (oldPc == -1 || pc <= oldPc
-						|| newLine != (lineInfo != null && oldPc >= 0 && oldPc < lineInfo.length ? lineInfo[oldPc] : -1)) {
+					if (oldPc == -1 || pc <= oldPc || newLine != prototype.lineAt(oldPc)) {
 						ds.hookLine(di, newLine);
 					}
 				}
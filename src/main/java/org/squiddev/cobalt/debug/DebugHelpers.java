@@ -394,7 +394,7 @@ public final class DebugHelpers {
 		lua_assert(pt.numparams + (pt.is_vararg & Lua.VARARG_HASARG) <= pt.maxstacksize);
 		lua_assert((pt.is_vararg & Lua.VARARG_NEEDSARG) == 0
 			|| (pt.is_vararg & Lua.VARARG_HASARG) != 0);
-		return pt.upvalues.length <= pt.nups && (pt.lineinfo.length == pt.code.length || pt.lineinfo.length == 0) && Lua.GET_OPCODE(pt.code[pt.code.length - 1]) == Lua.OP_RETURN;
+		return pt.upvalues.length <= pt.nups && (pt.lineInfoLength() == pt.code.length || pt.lineInfoLength() == 0) && Lua.GET_OPCODE(pt.code[pt.code.length - 1]) == Lua.OP_RETURN;
 	}
 
 	private static boolean checkArgMode(Prototype pt, int val, int mode) {
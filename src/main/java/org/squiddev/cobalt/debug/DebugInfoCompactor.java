@@ -0,0 +1,137 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.debug;
+
+import org.squiddev.cobalt.LuaString;
+import org.squiddev.cobalt.Prototype;
+import org.squiddev.cobalt.function.LocalVariable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reduces the memory used by the debug information of {@link Prototype}s.
+ *
+ * This compacts each prototype's line information (see {@link Prototype#compactLineInfo()}), and shares identical
+ * local variable and upvalue tables between every prototype compacted with the same instance. One compactor may be
+ * reused across many chunks, so that (for instance) the same file loaded several times only keeps one copy of its
+ * debug information.
+ *
+ * Prototypes should be compacted before they are first executed or shared between threads.
+ */
+public final class DebugInfoCompactor {
+	private static final LocalVariable[] NO_LOCALS = new LocalVariable[0];
+	private static final LuaString[] NO_UPVALUES = new LuaString[0];
+
+	private final Map<LuaString, LuaString> names = new HashMap<>();
+	private final Map<LocalsKey, LocalVariable[]> locals = new HashMap<>();
+	private final Map<List<LuaString>, LuaString[]> upvalues = new HashMap<>();
+
+	/**
+	 * Compact a prototype and all of its children.
+	 *
+	 * @param prototype The prototype to compact.
+	 * @throws IllegalStateException If the prototype has been {@link Prototype#share() shared}.
+	 */
+	public synchronized void compact(Prototype prototype) {
+		prototype.compactLineInfo();
+		prototype.locvars = internLocals(prototype.locvars);
+		prototype.upvalues = internUpvalues(prototype.upvalues);
+		if (prototype.source != null) prototype.source = internName(prototype.source);
+
+		for (Prototype child : prototype.p) compact(child);
+	}
+
+	private LuaString internName(LuaString name) {
+		LuaString existing = names.putIfAbsent(name, name);
+		return existing == null ? name : existing;
+	}
+
+	private LocalVariable[] internLocals(LocalVariable[] vars) {
+		if (vars == null || vars.length == 0) return NO_LOCALS;
+
+		LocalsKey key = new LocalsKey(vars);
+		LocalVariable[] existing = locals.get(key);
+		if (existing != null) return existing;
+
+		LocalVariable[] interned = new LocalVariable[vars.length];
+		for (int i = 0; i < vars.length; i++) {
+			LocalVariable var = vars[i];
+			interned[i] = new LocalVariable(internName(var.name), var.startpc, var.endpc);
+		}
+		locals.put(new LocalsKey(interned), interned);
+		return interned;
+	}
+
+	private LuaString[] internUpvalues(LuaString[] upvalueNames) {
+		if (upvalueNames == null || upvalueNames.length == 0) return NO_UPVALUES;
+
+		LuaString[] existing = upvalues.get(Arrays.asList(upvalueNames));
+		if (existing != null) return existing;
+
+		LuaString[] interned = new LuaString[upvalueNames.length];
+		for (int i = 0; i < upvalueNames.length; i++) interned[i] = internName(upvalueNames[i]);
+		upvalues.put(Arrays.asList(interned), interned);
+		return interned;
+	}
+
+	private static final class LocalsKey {
+		private final LocalVariable[] vars;
+		private final int hash;
+
+		LocalsKey(LocalVariable[] vars) {
+			this.vars = vars;
+
+			int hash = 1;
+			for (LocalVariable var : vars) {
+				hash = 31 * hash + var.name.hashCode();
+				hash = 31 * hash + var.startpc;
+				hash = 31 * hash + var.endpc;
+			}
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof LocalsKey)) return false;
+
+			LocalVariable[] other = ((LocalsKey) obj).vars;
+			if (hash != ((LocalsKey) obj).hash || vars.length != other.length) return false;
+			for (int i = 0; i < vars.length; i++) {
+				LocalVariable a = vars[i], b = other[i];
+				if (a.startpc != b.startpc || a.endpc != b.endpc || !a.name.equals(b.name)) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
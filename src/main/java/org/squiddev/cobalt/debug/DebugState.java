@@ -54,6 +54,11 @@ public final class DebugState {
 	 */
 	private final LuaState state;
 
+	/**
+	 * The pool to take frames from and return them to, or {@code null}.
+	 */
+	private final DebugFramePool pool;
+
 	/**
 	 * The top function.
 	 *
@@ -94,7 +99,19 @@ public final class DebugState {
 	public int hookcodes;
 
 	public DebugState(LuaState state) {
+		this(state, null);
+	}
+
+	/**
+	 * Create a new debug state, sharing frames with other states through a pool.
+	 *
+	 * @param state The owning Lua state.
+	 * @param pool  The pool to take frames from, or {@code null} to always allocate new ones.
+	 * @see #recycle()
+	 */
+	public DebugState(LuaState state, DebugFramePool pool) {
 		this.state = state;
+		this.pool = pool;
 	}
 
 	public LuaState getLuaState() {
@@ -129,6 +146,14 @@ public final class DebugState {
 		DebugFrame[] frames = stack;
 		int length = frames.length;
 		if (top >= length) {
+			// Reuse the stack of a finished coroutine where possible.
+			DebugFrame[] pooled = length == 0 && pool != null ? pool.take() : null;
+			if (pooled != null) {
+				stack = pooled;
+				this.top = top;
+				return pooled[top];
+			}
+
 			if (top >= MAX_SIZE) throw new LuaError("stack overflow");
 			int newSize = length == 0 ? DEFAULT_SIZE : Math.min(MAX_SIZE, length + (length / 2));
 			DebugFrame[] f = new DebugFrame[newSize];
@@ -153,6 +178,20 @@ public final class DebugState {
 		frame.clear();
 	}
 
+	/**
+	 * Return this state's frames to the pool, so they can be reused by another coroutine. This does nothing if the stack
+	 * is not empty, as the frames may still be inspected (for instance, by {@code debug.traceback}).
+	 *
+	 * The frames will be taken from the pool again if this state is used later.
+	 */
+	public void recycle() {
+		DebugFrame[] frames = stack;
+		if (pool == null || top != -1 || frames.length == 0) return;
+
+		stack = EMPTY;
+		pool.release(frames);
+	}
+
 	/**
 	 * Setup the hook
 	 *
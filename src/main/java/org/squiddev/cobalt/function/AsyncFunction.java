@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.function;
+
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.debug.DebugFrame;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A function whose result is computed asynchronously.
+ *
+ * When called, {@link #invokeAsync(LuaState, Varargs)} starts some operation and returns a {@link CompletionStage}
+ * for its result. If the stage has already completed, its result is returned immediately. Otherwise the current
+ * {@link LuaScheduler} task is suspended, freeing its worker, and resumed once the stage completes. The function then
+ * returns the stage's value, or raises its error.
+ *
+ * If the state is not being run by a {@link LuaScheduler}, or the current coroutine is inside a Java call and so
+ * cannot be suspended, the calling thread will block until the stage completes instead.
+ *
+ * @see LuaScheduler#suspendUntil(LuaState, CompletionStage)
+ */
+public abstract class AsyncFunction extends ResumableVarArgFunction<CompletableFuture<? extends Varargs>> {
+	/**
+	 * Start this function's operation.
+	 *
+	 * @param state The current Lua state.
+	 * @param args  The arguments this function was called with.
+	 * @return A stage which completes with the result of this function. If this completes exceptionally with a
+	 * {@link LuaError}, that error will be thrown. Other exceptions will be wrapped.
+	 * @throws LuaError If the operation could not be started.
+	 */
+	protected abstract CompletionStage<? extends Varargs> invokeAsync(LuaState state, Varargs args) throws LuaError;
+
+	@Override
+	protected final Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+		CompletionStage<? extends Varargs> stage = invokeAsync(state, args);
+		if (stage == null) throw new NullPointerException("invokeAsync returned null");
+
+		CompletableFuture<? extends Varargs> future = stage.toCompletableFuture();
+		if (!future.isDone() && LuaScheduler.canSuspend(state)) {
+			di.state = future;
+			LuaScheduler.suspendUntil(state, future);
+		}
+
+		return getResult(future);
+	}
+
+	@Override
+	protected final Varargs resumeThis(LuaState state, CompletableFuture<? extends Varargs> future, Varargs value) throws LuaError, UnwindThrowable {
+		// The stage will normally be complete, but be robust against the task being woken for other reasons.
+		if (!future.isDone()) LuaScheduler.suspendUntil(state, future);
+		return getResult(future);
+	}
+
+	private static Varargs getResult(CompletableFuture<? extends Varargs> future) throws LuaError {
+		Varargs result;
+		try {
+			result = future.get();
+		} catch (ExecutionException | CompletionException e) {
+			Throwable cause = e.getCause() == null ? e : e.getCause();
+			throw cause instanceof LuaError ? (LuaError) cause : new LuaError(cause);
+		} catch (CancellationException e) {
+			throw new LuaError(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LuaError(e);
+		}
+
+		return result == null ? Constants.NONE : result;
+	}
+}
@@ -128,6 +128,13 @@ import java.util.function.Supplier;
  *
  * See the source code in any of the library functions
  * such as {@link BaseLib} or {@link TableLib} for other examples.
+ *
+ * Library functions should not store per-state data in their fields, and instead access everything through the
+ * {@link LuaState} passed to each call. Such functions may be shared between several states, including ones running on
+ * different threads. To share a whole library, create it once, {@link LuaTable#freeze() freeze} its table and then
+ * store that table in each state's globals. The functions of the {@code string}, {@code table}, {@code math},
+ * {@code utf8}, {@code bit32} and {@code coroutine} libraries can be shared in this way. The {@code base},
+ * {@code package}, {@code io} and {@code os} libraries refer to per-state tables or resources, and must not be.
  */
 public abstract class LibFunction extends LuaFunction {
 
@@ -28,6 +28,9 @@ import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.debug.DebugFrame;
 import org.squiddev.cobalt.debug.DebugHandler;
 import org.squiddev.cobalt.debug.DebugState;
+import org.squiddev.cobalt.lib.BaseLib;
+
+import java.util.Arrays;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.Lua.*;
@@ -111,7 +114,7 @@ public final class LuaInterpreter {
 		Prototype p = function.p;
 		LuaValue[] stack = new LuaValue[p.maxstacksize];
 		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
-		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
+		varargs.copyTo(stack, 0, 1, p.numparams);
 
 		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
 	}
@@ -121,16 +124,28 @@ public final class LuaInterpreter {
 		LuaValue[] stack = new LuaValue[p.maxstacksize];
 		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
 
-		varargs = ValueFactory.varargsOf(args, argStart, argSize, varargs);
-		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
+		// Copy arguments straight out of the caller's registers, only building a Varargs for the vararg portion.
+		int numParams = p.numparams;
+		int fromArgs = Math.min(argSize, numParams);
+		System.arraycopy(args, argStart, stack, 0, fromArgs);
+		if (fromArgs < numParams) varargs.copyTo(stack, fromArgs, 1, numParams - fromArgs);
+
+		Varargs rest;
+		if (p.is_vararg == 0) {
+			rest = NONE;
+		} else if (argSize > numParams) {
+			rest = ValueFactory.varargsOf(args, argStart + numParams, argSize - numParams, varargs);
+		} else {
+			rest = varargs.subargs(numParams - argSize + 1);
+		}
 
-		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+		return setupCall(state, function, rest, stack, flags);
 	}
 
 	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, LuaValue[] stack, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
 		Upvalue[] upvalues = p.p.length > 0 ? new Upvalue[stack.length] : null;
-		if (p.is_vararg >= VARARG_NEEDSARG) stack[p.numparams] = new LuaTable(varargs);
+		if (p.is_vararg >= VARARG_NEEDSARG) stack[p.numparams] = argTable(state, varargs);
 
 		DebugState ds = DebugHandler.getDebugState(state);
 		DebugFrame di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
@@ -148,9 +163,92 @@ public final class LuaInterpreter {
 		return di;
 	}
 
+	/**
+	 * Replace the current frame with a tail call to an interpreted function.
+	 *
+	 * Rather than pushing a new frame, this reuses the existing {@link DebugFrame}. The frame's registers are also
+	 * reused when the callee's stack fits within them, so long chains of tail calls do not allocate a new stack for
+	 * each call.
+	 *
+	 * @param state    The current Lua state.
+	 * @param di       The current frame. Its upvalues must already have been closed.
+	 * @param function The function to call.
+	 * @param argStart The register holding the first argument.
+	 * @param argSize  The number of arguments held in registers.
+	 * @param more     Any additional arguments, following those in registers.
+	 * @return The frame for the called function.
+	 * @throws LuaError        If the call hook errors.
+	 * @throws UnwindThrowable If the call hook yields.
+	 */
+	private static DebugFrame setupTailCall(LuaState state, DebugFrame di, LuaInterpretedFunction function, int argStart, int argSize, Varargs more) throws LuaError, UnwindThrowable {
+		Prototype p = function.p;
+		LuaValue[] args = di.stack;
+		int numParams = p.numparams;
+
+		// Capture any varargs before we start overwriting registers.
+		Varargs varargs;
+		if (p.is_vararg == 0) {
+			varargs = NONE;
+		} else if (argSize > numParams) {
+			varargs = ValueFactory.varargsOf(args, argStart + numParams, argSize - numParams, more).asImmutable();
+		} else {
+			varargs = more.subargs(numParams - argSize + 1);
+		}
+
+		// Arguments always sit above the first register, so copying them down is safe even when reusing the stack.
+		LuaValue[] stack = p.maxstacksize <= args.length ? args : new LuaValue[p.maxstacksize];
+		int fromArgs = Math.min(argSize, numParams);
+		System.arraycopy(args, argStart, stack, 0, fromArgs);
+		if (fromArgs < numParams) more.copyTo(stack, fromArgs, 1, numParams - fromArgs);
+		System.arraycopy(NILS, 0, stack, numParams, stack.length - numParams);
+
+		Upvalue[] upvalues = null;
+		if (p.p.length > 0) {
+			upvalues = di.stackUpvalues;
+			if (upvalues != null && upvalues.length == stack.length) {
+				Arrays.fill(upvalues, null);
+			} else {
+				upvalues = new Upvalue[stack.length];
+			}
+		}
+
+		if (p.is_vararg >= VARARG_NEEDSARG) stack[numParams] = argTable(state, varargs);
+
+		di.setFunction(function, varargs, stack, upvalues);
+		di.flags = (di.flags & FLAG_FRESH) | FLAG_TAIL;
+		di.state = null;
+		di.extras = NONE;
+		di.oldPc = -1;
+		di.pc = 0;
+
+		DebugState ds = DebugHandler.getDebugState(state);
+		if (!ds.inhook && ds.hookcall) {
+			// Pretend we are at the first instruction for the hook.
+			ds.hookCall(di);
+		}
+
+		di.top = 0;
+		return di;
+	}
+
+	/**
+	 * Create the {@code arg} table for a vararg function, tracking it if the state has an {@link AllocationTracker}.
+	 *
+	 * @param state   The current Lua state.
+	 * @param varargs The function's varargs.
+	 * @return The created table.
+	 * @throws LuaError If the state's allocation limit has been exceeded.
+	 */
+	private static LuaTable argTable(LuaState state, Varargs varargs) throws LuaError {
+		LuaTable table = new LuaTable(varargs);
+		if (state.allocations != null) state.allocations.check(table);
+		return table;
+	}
+
 	static Varargs execute(final LuaState state, DebugFrame di, LuaInterpretedFunction function) throws LuaError, UnwindThrowable {
 		final DebugState ds = DebugHandler.getDebugState(state);
 		final DebugHandler handler = state.debug;
+		final AllocationTracker allocations = state.allocations;
 
 		newFrame:
 		while (true) {
@@ -225,11 +323,14 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
 						OperationHelper.setTable(state, stack[a], b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], a);
+						if (allocations != null) allocations.check(stack[a]);
 						break;
 					}
 
 					case OP_NEWTABLE: // A B C: R(A):= {} (size = B,C)
-						stack[a] = new LuaTable((i >>> POS_B) & MAXARG_B, (i >>> POS_C) & MAXARG_C);
+						stack[a] = allocations == null
+							? new LuaTable((i >>> POS_B) & MAXARG_B, (i >>> POS_C) & MAXARG_C)
+							: allocations.newTable((i >>> POS_B) & MAXARG_B, (i >>> POS_C) & MAXARG_C);
 						break;
 
 					case OP_SELF: { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
@@ -306,6 +407,7 @@ public final class LuaInterpreter {
 						concat(state, di, stack, di.top, c - b + 1);
 						stack[a] = stack[b];
 						di.top = b;
+						if (allocations != null) allocations.check();
 						break;
 					}
 
@@ -450,6 +552,17 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 
 						LuaValue val = stack[a];
+						if (val instanceof LuaInterpretedFunction) {
+							// Replace the current frame with a new one, passing arguments directly from our registers.
+							closeAll(openups);
+							function = (LuaInterpretedFunction) val;
+							di = b > 0
+								? setupTailCall(state, di, function, a + 1, b - 1, NONE) // exact arg count
+								: setupTailCall(state, di, function, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
+
+							continue newFrame;
+						}
+
 						Varargs args;
 						switch (b) {
 							case 1:
@@ -470,7 +583,7 @@ public final class LuaInterpreter {
 						if (val.isFunction()) {
 							functionVal = (LuaFunction) val;
 						} else {
-							LuaValue meta = val.metatag(state, Constants.CALL);
+							LuaValue meta = val.metatag(state, CachedMetamethod.CALL);
 							if (!meta.isFunction()) throw ErrorFactory.operandError(state, val, "call", a);
 
 							functionVal = (LuaFunction) meta;
@@ -503,29 +616,15 @@ public final class LuaInterpreter {
 						closeAll(openups);
 						handler.onReturn(ds, di);
 
-						Varargs ret;
-						switch (b) {
-							case 0:
-								ret = ValueFactory.varargsOf(stack, a, top - v.count() - a, v).asImmutable();
-								break;
-							case 1:
-								ret = NONE;
-								break;
-							case 2:
-								ret = stack[a];
-								break;
-							default:
-								ret = ValueFactory.varargsOf(stack, a, b - 1).asImmutable();
-								break;
-						}
-
 						if ((flags & FLAG_FRESH) != 0) {
 							// If we're a fresh invocation then return to the parent.
-							return ret;
+							return returnValues(stack, a, b, top, v);
 						} else {
 							di = ds.getStackUnsafe();
 							function = (LuaInterpretedFunction) di.closure;
-							resume(state, di, function, ret);
+							if (!returnTo(di, function, stack, a, b, top, v)) {
+								resume(state, di, function, returnValues(stack, a, b, top, v));
+							}
 							continue newFrame;
 						}
 					}
@@ -559,6 +658,21 @@ public final class LuaInterpreter {
 								R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
 								else pc++
 							*/
+						LuaValue iterator = stack[a], table = stack[a + 1];
+						boolean isNext;
+						if (table instanceof LuaTable && ((isNext = BaseLib.isNext(iterator)) || BaseLib.isINext(iterator))) {
+							// Iterate over tables directly when using the builtin next and inext functions, avoiding
+							// allocating a Varargs on every step.
+							LuaTable tbl = (LuaTable) table;
+							int c = (i >> POS_C) & MAXARG_C;
+							if (isNext ? tbl.next(stack[a + 2], stack, a + 3, c) : tbl.inext(stack[a + 2], stack, a + 3, c)) {
+								stack[a + 2] = stack[a + 3];
+							} else {
+								pc++;
+							}
+							break;
+						}
+
 						Varargs v = di.extras = OperationHelper.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
 						LuaValue val = v.first();
 						if (val.isNil()) {
@@ -596,6 +710,7 @@ public final class LuaInterpreter {
 								tbl.rawset(offset + j, stack[a + j]);
 							}
 						}
+						if (allocations != null) allocations.check(tbl);
 						break;
 					}
 
@@ -621,6 +736,7 @@ public final class LuaInterpreter {
 								: openups[b] != null ? openups[b] : (openups[b] = new Upvalue(stack, b)); // OP_MOVE
 						}
 						stack[a] = newcl;
+						if (allocations != null) allocations.allocateClosure(newp.nups);
 						break;
 					}
 
@@ -677,7 +793,7 @@ public final class LuaInterpreter {
 						length += strLen;
 					}
 
-					stack[top - n] = LuaRope.valueOf(stack, top - n, n, length);
+					stack[top - n] = LuaRope.valueOf(stack, top - n, n, length, state.allocations);
 				}
 
 				// Got "n" strings and created one new one
@@ -695,6 +811,79 @@ public final class LuaInterpreter {
 		for (Upvalue upvalue : upvalues) if (upvalue != null) upvalue.close();
 	}
 
+	/**
+	 * Build the values returned by an {@link Lua#OP_RETURN} instruction.
+	 *
+	 * @param stack  The returning function's registers.
+	 * @param a      The first register to return.
+	 * @param b      The {@code B} operand of the instruction.
+	 * @param top    The frame's top, used when {@code b == 0}.
+	 * @param extras The frame's extra values, used when {@code b == 0}.
+	 * @return The values to return.
+	 */
+	private static Varargs returnValues(LuaValue[] stack, int a, int b, int top, Varargs extras) {
+		switch (b) {
+			case 0:
+				return ValueFactory.varargsOf(stack, a, top - extras.count() - a, extras).asImmutable();
+			case 1:
+				return NONE;
+			case 2:
+				return stack[a];
+			default:
+				return ValueFactory.varargsOf(stack, a, b - 1).asImmutable();
+		}
+	}
+
+	/**
+	 * Copy the values returned by an {@link Lua#OP_RETURN} instruction directly into the registers of the calling
+	 * frame, without materialising a {@link Varargs}.
+	 *
+	 * This only handles the caller being suspended on an {@link Lua#OP_CALL}. Any other instruction, or open-ended
+	 * results which would not fit within the caller's registers, should be handled by {@link #resume} instead.
+	 *
+	 * @param caller   The calling frame.
+	 * @param function The calling function.
+	 * @param stack    The returning function's registers.
+	 * @param a        The first register to return.
+	 * @param b        The {@code B} operand of the instruction.
+	 * @param top      The returning frame's top, used when {@code b == 0}.
+	 * @param extras   The returning frame's extra values, used when {@code b == 0}.
+	 * @return Whether the values could be copied. If {@code false}, the caller is left untouched.
+	 */
+	private static boolean returnTo(DebugFrame caller, LuaInterpretedFunction function, LuaValue[] stack, int a, int b, int top, Varargs extras) {
+		int i = function.p.code[caller.pc];
+		if (((i >> POS_OP) & MAX_OP) != OP_CALL) return false;
+
+		int count;
+		if (b == 0) {
+			count = top - extras.count() - a;
+		} else {
+			count = b - 1;
+			extras = NONE;
+		}
+
+		int callA = (i >>> POS_A) & MAXARG_A;
+		int c = (i >>> POS_C) & MAXARG_C;
+		LuaValue[] callerStack = caller.stack;
+		if (c > 0) {
+			// Fixed number of results: copy what we have and pad the remainder.
+			int wanted = c - 1;
+			int copied = Math.min(wanted, count);
+			System.arraycopy(stack, a, callerStack, callA, copied);
+			for (int j = copied; j < wanted; j++) callerStack[callA + j] = extras.arg(j - count + 1);
+			caller.extras = NONE;
+		} else {
+			// Open results: the register portion is placed on the caller's stack, as if it were pushed by the call.
+			if (callA + count > callerStack.length) return false;
+			System.arraycopy(stack, a, callerStack, callA, count);
+			caller.extras = extras;
+			caller.top = callA + count + extras.count();
+		}
+
+		caller.pc++;
+		return true;
+	}
+
 	public static void resume(LuaState state, DebugFrame di, LuaInterpretedFunction function, Varargs varargs) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
 		int i = p.code[di.pc++];
@@ -791,21 +980,7 @@ public final class LuaInterpreter {
 				int a = (i >>> POS_A) & MAXARG_A;
 				int b = (i >>> POS_B) & MAXARG_B;
 
-				Varargs ret;
-				switch (b) {
-					case 0:
-						ret = ValueFactory.varargsOf(di.stack, a, di.top - di.extras.count() - a, di.extras).asImmutable();
-						break;
-					case 1:
-						ret = NONE;
-						break;
-					case 2:
-						ret = di.stack[a];
-						break;
-					default:
-						ret = ValueFactory.varargsOf(di.stack, a, b - 1).asImmutable();
-						break;
-				}
+				Varargs ret = returnValues(di.stack, a, b, di.top, di.extras);
 
 				int flags = di.flags;
 				handler.onReturnError(ds);
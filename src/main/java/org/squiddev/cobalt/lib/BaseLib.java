@@ -164,6 +164,29 @@ public class BaseLib implements LuaLibrary {
 		return f;
 	}
 
+	/**
+	 * Determine whether a function is the builtin {@code next} function. The interpreter uses this to iterate over
+	 * tables without calling the function.
+	 *
+	 * @param function The function to check.
+	 * @return Whether this is {@code next}.
+	 * @see LuaTable#next(LuaValue, LuaValue[], int, int)
+	 */
+	public static boolean isNext(LuaValue function) {
+		return function instanceof BaseLibV && ((BaseLibV) function).is(18);
+	}
+
+	/**
+	 * Determine whether a function is the builtin {@code inext} function, as returned by {@code ipairs}.
+	 *
+	 * @param function The function to check.
+	 * @return Whether this is {@code inext}.
+	 * @see LuaTable#inext(LuaValue, LuaValue[], int, int)
+	 */
+	public static boolean isINext(LuaValue function) {
+		return function instanceof BaseLibV && ((BaseLibV) function).is(19);
+	}
+
 	private static final class BaseLibV extends VarArgFunction {
 		private final BaseLib baselib;
 
@@ -171,6 +194,10 @@ public class BaseLib implements LuaLibrary {
 			this.baselib = baselib;
 		}
 
+		private boolean is(int opcode) {
+			return this.opcode == opcode;
+		}
+
 		@Override
 		public Varargs invoke(LuaState state, Varargs args) throws LuaError, UnwindThrowable {
 			// Note: dofile, tostring and pairs throw UnwindThrowable. This is safe, as it's a tail call.
@@ -201,7 +228,7 @@ public class BaseLib implements LuaLibrary {
 				case 3: // "getmetatable", // ( object ) -> table
 				{
 					LuaTable mt = args.checkValue(1).getMetatable(state);
-					return mt != null ? mt.rawget(Constants.METATABLE).optValue(mt) : Constants.NIL;
+					return mt != null ? mt.rawget(CachedMetamethod.METATABLE).optValue(mt) : Constants.NIL;
 				}
 				case 4: // "loadfile", // ( [filename] ) -> chunk | nil, msg
 				{
@@ -269,12 +296,13 @@ public class BaseLib implements LuaLibrary {
 					LuaValue v = args.checkValue(3);
 					if (k.isNil()) throw new LuaError("table index is nil");
 					t.rawset(k.checkValidKey(), v);
+					if (state.allocations != null) state.allocations.check(t);
 					return t;
 				}
 				case 13: { // "setmetatable", // (table, metatable) -> table
 					final LuaValue t = args.first();
 					final LuaTable mt0 = t.getMetatable(state);
-					if (mt0 != null && !mt0.rawget(Constants.METATABLE).isNil()) {
+					if (mt0 != null && !mt0.rawget(CachedMetamethod.METATABLE).isNil()) {
 						throw new LuaError("cannot change a protected metatable");
 					}
 					final LuaValue mt = args.checkValue(2);
@@ -297,7 +325,7 @@ public class BaseLib implements LuaLibrary {
 				}
 				case 16: { // "pairs" (t) -> iter-func, t, nil
 					LuaValue value = args.checkValue(1);
-					LuaValue pairs = value.metatag(state, Constants.PAIRS);
+					LuaValue pairs = value.metatag(state, CachedMetamethod.PAIRS);
 					if (pairs.isNil()) {
 						return varargsOf(baselib.next, value, Constants.NIL);
 					} else {
@@ -58,17 +58,6 @@ public class CoroutineLib extends ResumableVarArgFunction<Object> implements Lua
 	private static final int STATUS = 3;
 	private static final int YIELD = 4;
 	private static final int WRAP = 5;
-	private static final int WRAPPED = 6;
-
-	private final LuaThread thread;
-
-	public CoroutineLib() {
-		thread = null;
-	}
-
-	private CoroutineLib(LuaThread thread) {
-		this.thread = thread;
-	}
 
 	@Override
 	public LuaValue add(LuaState state, LuaTable env) {
@@ -108,15 +97,7 @@ public class CoroutineLib extends ResumableVarArgFunction<Object> implements Lua
 			case WRAP: {
 				final LuaFunction func = args.arg(1).checkFunction();
 				final LuaTable env = func.getfenv();
-				final LuaThread thread = new LuaThread(state, func, env);
-				CoroutineLib cl = new CoroutineLib(thread);
-				cl.setfenv(env);
-				cl.name = "wrapped";
-				cl.opcode = WRAPPED;
-				return cl;
-			}
-			case WRAPPED: {
-				return LuaThread.resume(state, thread, args);
+				return new Wrapped(new LuaThread(state, func, env), env);
 			}
 			default:
 				return Constants.NONE;
@@ -127,7 +108,6 @@ public class CoroutineLib extends ResumableVarArgFunction<Object> implements Lua
 	public Varargs resumeThis(LuaState state, Object object, Varargs value) {
 		switch (opcode) {
 			case YIELD:
-			case WRAPPED:
 				return value;
 			case RESUME:
 				return varargsOf(Constants.TRUE, value);
@@ -145,4 +125,28 @@ public class CoroutineLib extends ResumableVarArgFunction<Object> implements Lua
 				throw new NonResumableException("Cannot resume " + debugName());
 		}
 	}
+
+	/**
+	 * The function returned by {@code coroutine.wrap}. This resumes the coroutine directly, returning its results
+	 * as-is rather than packing them with a status like {@code coroutine.resume}.
+	 */
+	private static final class Wrapped extends ResumableVarArgFunction<Object> {
+		private final LuaThread thread;
+
+		Wrapped(LuaThread thread, LuaTable env) {
+			this.thread = thread;
+			name = "wrapped";
+			setfenv(env);
+		}
+
+		@Override
+		protected Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+			return LuaThread.resume(state, thread, args);
+		}
+
+		@Override
+		protected Varargs resumeThis(LuaState state, Object object, Varargs value) {
+			return value;
+		}
+	}
 }
@@ -286,10 +286,7 @@ public class DebugLib extends VarArgFunction implements LuaLibrary {
 					if (di.closure != null) {
 						LuaTable lines = new LuaTable();
 						info.rawset(ACTIVELINES, lines);
-						int[] lineinfo = di.closure.getPrototype().lineinfo;
-						if (lineinfo != null) {
-							for (int line : lineinfo) lines.rawset(line, TRUE);
-						}
+						for (int line : di.closure.getPrototype().lineInfo()) lines.rawset(line, TRUE);
 					}
 					break;
 				}
@@ -137,7 +137,7 @@ public class StringLib implements LuaLibrary {
 				case 5:
 					return StringMatch.match(state, args);
 				case 6:
-					return StringLib.rep(args);
+					return StringLib.rep(state, args);
 				case 7:
 					return StringLib.sub(args);
 				case 8:
@@ -161,13 +161,13 @@ public class StringLib implements LuaLibrary {
 
 					GSubState gsub = new GSubState(state, src, p, replace, maxS);
 					di.state = gsub;
-					return StringMatch.gsubRun(state, gsub, null);
+					return trackString(state, StringMatch.gsubRun(state, gsub, null));
 				}
 				case 1: { // format
 					LuaString src = args.arg(1).checkLuaString();
 					FormatState format = new FormatState(src, new Buffer(src.length), args);
 					di.state = format;
-					return StringFormat.format(state, format);
+					return trackString(state, StringFormat.format(state, format));
 				}
 				default:
 					return NONE;
@@ -178,11 +178,11 @@ public class StringLib implements LuaLibrary {
 		public Varargs resumeThis(LuaState state, Object object, Varargs value) throws LuaError, UnwindThrowable {
 			switch (opcode) {
 				case 0: // gsub
-					return StringMatch.gsubRun(state, (GSubState) object, value.first());
+					return trackString(state, StringMatch.gsubRun(state, (GSubState) object, value.first()));
 				case 1: { // format
 					FormatState format = (FormatState) object;
 					StringFormat.addString(format.buffer, format.current, OperationHelper.checkToString(value.first()));
-					return StringFormat.format(state, format);
+					return trackString(state, StringFormat.format(state, format));
 				}
 				default:
 					throw new NonResumableException("Cannot resume " + debugName());
@@ -272,12 +272,29 @@ public class StringLib implements LuaLibrary {
 	}
 
 
+	/**
+	 * Record the string returned by a library function with the state's {@link AllocationTracker}, if present.
+	 *
+	 * @param state  The current Lua state.
+	 * @param result The function's result, whose first value is the allocated string.
+	 * @return The function's result.
+	 * @throws LuaError If the allocation limit has been exceeded.
+	 */
+	static Varargs trackString(LuaState state, Varargs result) throws LuaError {
+		AllocationTracker allocations = state.allocations;
+		if (allocations != null) {
+			LuaValue value = result.first();
+			if (value instanceof LuaBaseString) allocations.allocateString(((LuaBaseString) value).length());
+		}
+		return result;
+	}
+
 	/**
 	 * string.rep (s, n)
 	 *
 	 * Returns a string that is the concatenation of n copies of the string s.
 	 */
-	static Varargs rep(Varargs args) throws LuaError {
+	static Varargs rep(LuaState state, Varargs args) throws LuaError {
 		LuaString s = args.arg(1).checkLuaString();
 		int n = args.arg(2).checkInteger();
 		int len = s.length();
@@ -287,6 +304,9 @@ public class StringLib implements LuaLibrary {
 		} else if (n == 1) {
 			return s;
 		} else {
+			// Check the limit before allocating, as this may be very large.
+			if (state.allocations != null) state.allocations.allocateString((int) Math.min(Integer.MAX_VALUE, (long) len * n));
+
 			final byte[] bytes = new byte[len * n];
 			for (int offset = 0; offset < bytes.length; offset += len) {
 				s.copyTo(0, bytes, offset, len);
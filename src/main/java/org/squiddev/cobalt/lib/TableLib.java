@@ -50,7 +50,7 @@ public class TableLib implements LuaLibrary {
 	public LuaTable add(LuaState state, LuaTable env) {
 		LuaTable t = new LuaTable();
 		LibFunction.bind(t, TableLib1::new, new String[]{"getn", "maxn",});
-		LibFunction.bind(t, TableLibV::new, new String[]{"remove", "concat", "insert", "pack"});
+		LibFunction.bind(t, TableLibV::new, new String[]{"remove", "concat", "insert", "pack", "move", "create"});
 		LibFunction.bind(t, TableLibR::new, new String[]{"sort", "foreach", "foreachi", "unpack"});
 		env.rawset("table", t);
 		state.loadedPackages.rawset("table", t);
@@ -82,25 +82,54 @@ public class TableLib implements LuaLibrary {
 				}
 				case 1: { // "concat" (table [, sep [, i [, j]]]) -> string
 					LuaTable table = args.arg(1).checkTable();
-					return table.concat(
+					return StringLib.trackString(state, table.concat(
 						args.arg(2).optLuaString(EMPTYSTRING),
 						args.arg(3).optInteger(1),
-						args.exists(4) ? args.arg(4).checkInteger() : table.length());
+						args.exists(4) ? args.arg(4).checkInteger() : table.length()));
 				}
 				case 2: { // "insert" (table, [pos,] value) -> prev-ele
 					final LuaTable table = args.arg(1).checkTable();
 					final int pos = args.count() > 2 ? args.arg(2).checkInteger() : 0;
 					final LuaValue value = args.arg(args.count() > 2 ? 3 : 2);
 					table.insert(pos, value);
+					if (state.allocations != null) state.allocations.check(table);
 					return NONE;
 				}
 				case 3: { // pack(...)
 					int count = args.count();
-					LuaTable table = new LuaTable(count, 1);
+					LuaTable table = newTable(state, count, 1);
 					for (int i = 1; i <= count; i++) table.rawset(i, args.arg(i));
 					table.rawset(N, valueOf(count));
 					return table;
 				}
+				case 4: { // move(a1, f, e, t [,a2]) -> a2
+					LuaTable source = args.arg(1).checkTable();
+					int from = args.arg(2).checkInteger();
+					int to = args.arg(3).checkInteger();
+					int destFrom = args.arg(4).checkInteger();
+					LuaTable dest = args.isNoneOrNil(5) ? source : args.arg(5).checkTable();
+
+					if (to >= from) {
+						if (!(from > 0 || to < Integer.MAX_VALUE + from)) {
+							throw ErrorFactory.argError(3, "too many elements to move");
+						}
+						if (destFrom > Integer.MAX_VALUE - (to - from)) {
+							throw ErrorFactory.argError(4, "destination wrap around");
+						}
+
+						source.move(from, to, dest, destFrom);
+						if (state.allocations != null) state.allocations.check(dest);
+					}
+
+					return dest;
+				}
+				case 5: { // create(narray [, nhash]) -> table
+					int narray = args.arg(1).checkInteger();
+					int nhash = args.arg(2).optInteger(0);
+					if (narray < 0 || narray > LuaTable.MAX_ARRAY_SIZE) throw ErrorFactory.argError(1, "out of range");
+					if (nhash < 0 || nhash > LuaTable.MAX_ARRAY_SIZE) throw ErrorFactory.argError(2, "out of range");
+					return newTable(state, narray, nhash);
+				}
 				default:
 					return NONE;
 			}
@@ -115,10 +144,10 @@ public class TableLib implements LuaLibrary {
 					LuaTable table = args.arg(1).checkTable();
 					LuaValue compare = args.isNoneOrNil(2) ? NIL : args.arg(2).checkFunction();
 					int n = table.prepSort();
-					if (n > 1) {
+					if (n > 1 && (!compare.isNil() || !table.sortPrimitive(n))) {
 						SortState res = new SortState(table, n, compare);
 						di.state = res;
-						heapSort(state, table, n, compare, res, 0, n / 2 - 1);
+						mergeSort(state, res, false, false);
 					}
 					return NONE;
 				}
@@ -165,22 +194,8 @@ public class TableLib implements LuaLibrary {
 		protected Varargs resumeThis(LuaState state, Object object, Varargs value) throws LuaError, UnwindThrowable {
 			switch (opcode) {
 				case 0: { // "sort" (table [, comp]) -> void
-					SortState res = (SortState) object;
-					LuaTable table = res.table;
-					LuaValue compare = res.compare;
-					int count = res.count;
-
-					// We attempt to recover from sifting the state
-					if (res.siftState != -1) {
-						int root = stateSiftDown(state, table, compare, res, value.first().toBoolean());
-						res.siftState = -1;
-
-						// Continue sifting here
-						if (root != -1) normalSiftDown(state, table, root, res.end, compare, res);
-					}
-
-					// And continue sorting
-					heapSort(state, table, count, compare, res, res.sortState, res.counter);
+					// Continue sorting, using the result of the comparison we yielded during.
+					mergeSort(state, (SortState) object, true, value.first().toBoolean());
 					return NONE;
 				}
 
@@ -297,119 +312,117 @@ public class TableLib implements LuaLibrary {
 		return NIL;
 	}
 
+	private static LuaTable newTable(LuaState state, int narray, int nhash) throws LuaError {
+		return state.allocations == null ? new LuaTable(narray, nhash) : state.allocations.newTable(narray, nhash);
+	}
+
 	private static final class SortState {
 		final LuaTable table;
 		final int count;
 		final LuaValue compare;
 
-		// Top level state
-		int sortState = 0;
-		int counter = -1;
+		LuaValue[] values;
+		LuaValue[] buffer;
+
+		// The width of the runs currently being merged, and the start of the current pair of runs.
+		int width = 1;
+		int low = 0;
 
-		int siftState = -1;
-		int root;
-		int child;
-		int end;
+		// Whether we're checking if the pair of runs is already ordered, or merging them.
+		boolean merging;
+		int left;
+		int right;
+		int out;
 
 		private SortState(LuaTable table, int count, LuaValue compare) {
 			this.table = table;
 			this.count = count;
 			this.compare = compare;
+
+			LuaValue[] values = this.values = new LuaValue[count];
+			for (int i = 0; i < count; i++) values[i] = table.rawget(i + 1);
+			buffer = new LuaValue[count];
 		}
 	}
 
-	private static void heapSort(LuaState state, LuaTable table, int count, LuaValue compare, SortState res, int sortState, int counter) throws LuaError, UnwindThrowable {
-		switch (sortState) {
-			case 0: {
-				int start = counter;
-				try {
-					for (; start >= 0; --start) {
-						normalSiftDown(state, table, start, count - 1, compare, res);
+	/**
+	 * Sort a table using a bottom-up merge sort. This requires fewer comparisons than heap sort (at most
+	 * {@code n log n}), which matters when each comparison may call a Lua function.
+	 *
+	 * All progress is stored in {@link SortState}, and fields are only updated once a comparison has completed. This
+	 * means that if a comparison yields, we can resume from the same point.
+	 *
+	 * @param state    The current Lua state.
+	 * @param res      The current sort state.
+	 * @param resuming If we are resuming after a comparison yielded.
+	 * @param result   The result of the comparison we yielded during, if resuming.
+	 * @throws LuaError        If a comparison failed.
+	 * @throws UnwindThrowable If a comparison yielded.
+	 */
+	private static void mergeSort(LuaState state, SortState res, boolean resuming, boolean result) throws LuaError, UnwindThrowable {
+		int count = res.count;
+		LuaValue compare = res.compare;
+
+		for (; res.width < count; res.width *= 2) {
+			int width = res.width;
+			LuaValue[] src = res.values, dest = res.buffer;
+
+			for (; res.low < count; res.low += 2 * width) {
+				int low = res.low, mid = Math.min(low + width, count), high = Math.min(low + 2 * width, count);
+
+				if (!resuming) {
+					// A trailing run with no partner can just be copied.
+					if (mid >= high) {
+						System.arraycopy(src, low, dest, low, high - low);
+						continue;
 					}
-				} catch (UnwindThrowable e) {
-					res.sortState = 0;
-					res.counter = start - 1;
-					throw e;
+
+					res.merging = false;
 				}
 
-				// Allow explicit fall-through into the next state
-				// Therefore we want to reset all the various counters.
-				counter = count - 1;
-			}
+				// If the two runs are already in order, we can skip merging them entirely.
+				if (!res.merging) {
+					boolean outOfOrder = resuming ? result : lessThan(state, compare, src[mid], src[mid - 1]);
+					resuming = false;
 
-			case 1: {
-				int end = counter;
-				try {
-					for (; end > 0; ) {
-						table.swap(end, 0);
-						normalSiftDown(state, table, 0, --end, compare, res);
+					if (!outOfOrder) {
+						System.arraycopy(src, low, dest, low, high - low);
+						continue;
 					}
-				} catch (UnwindThrowable e) {
-					res.sortState = 1;
-					res.counter = end;
-					throw e;
-				}
-			}
-		}
-	}
-
-	private static void normalSiftDown(LuaState state, LuaTable table, int root, int end, LuaValue compare, SortState res) throws LuaError, UnwindThrowable {
-		int siftState = -1, child = -1;
-		try {
-			for (; root * 2 + 1 <= end; ) {
-				siftState = 0;
 
-				child = root * 2 + 1;
-				if (child < end && table.compare(state, child, child + 1, compare)) {
-					++child;
+					res.merging = true;
+					res.left = low;
+					res.right = mid;
+					res.out = low;
 				}
 
-				siftState = 1;
+				while (res.left < mid && res.right < high) {
+					boolean takeRight = resuming ? result : lessThan(state, compare, src[res.right], src[res.left]);
+					resuming = false;
 
-				if (table.compare(state, root, child, compare)) {
-					table.swap(root, child);
-					root = child;
-				} else {
-					return;
+					dest[res.out++] = takeRight ? src[res.right++] : src[res.left++];
 				}
+
+				int left = res.left, right = res.right, out = res.out;
+				System.arraycopy(src, left, dest, out, mid - left);
+				System.arraycopy(src, right, dest, out + mid - left, high - right);
 			}
-		} catch (UnwindThrowable e) {
-			res.root = root;
-			res.child = child;
-			res.siftState = siftState;
-			res.end = end;
-			throw e;
+
+			res.low = 0;
+			res.values = dest;
+			res.buffer = src;
 		}
+
+		LuaTable table = res.table;
+		LuaValue[] values = res.values;
+		for (int i = 0; i < count; i++) table.rawset(i + 1, values[i]);
 	}
 
-	private static int stateSiftDown(LuaState state, LuaTable table, LuaValue compare, SortState res, boolean value) throws LuaError, UnwindThrowable {
-		int siftState = res.siftState;
-		int child = res.child;
-		int root = res.root;
-
-		switch (siftState) {
-			case 0:
-				if (value) child++;
-
-				// This is technically state 1 now, but we care about the exit
-				// point rather than the entry point
-				try {
-					value = table.compare(state, root, child, compare);
-				} catch (UnwindThrowable e) {
-					res.child = child;
-					res.siftState = 1;
-					throw e;
-				}
-				// Allow fall through
-			case 1:
-				if (value) {
-					table.swap(root, child);
-					return child;
-				} else {
-					return -1;
-				}
-			default:
-				throw new IllegalStateException("No such state " + siftState);
-		}
+	private static boolean lessThan(LuaState state, LuaValue compare, LuaValue a, LuaValue b) throws LuaError, UnwindThrowable {
+		if (a.isNil() || b.isNil()) return false;
+
+		return compare.isNil()
+			? OperationHelper.lt(state, a, b)
+			: OperationHelper.call(state, compare, a, b).toBoolean();
 	}
 }
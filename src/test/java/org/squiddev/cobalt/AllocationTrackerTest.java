@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.squiddev.cobalt.compiler.CompileException;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AllocationTrackerTest {
+	private static Varargs run(LuaState state, String code) throws LuaError, CompileException, IOException, InterruptedException {
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test", globals);
+		return LuaThread.runMain(state, function);
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		assertNull(new LuaState().allocations);
+	}
+
+	@Test
+	public void testTracksAllocations() throws Exception {
+		LuaState state = LuaState.builder().allocationLimit(Long.MAX_VALUE).build();
+		run(state, "local t = {} for i = 1, 1000 do t[i] = function() return i end end local s = ('x'):rep(1000) .. 'y' local _ = s == 'y'");
+
+		AllocationTracker allocations = state.allocations;
+		assertTrue(allocations.getTableBytes() >= 1000 * AllocationTracker.ARRAY_SLOT_BYTES, "Tracks tables");
+		assertTrue(allocations.getClosureBytes() >= 1000 * AllocationTracker.CLOSURE_BYTES, "Tracks closures");
+		assertTrue(allocations.getStringBytes() >= 2001, "Tracks strings");
+		assertEquals(allocations.getTableBytes() + allocations.getClosureBytes() + allocations.getStringBytes(), allocations.getTotalBytes());
+
+		allocations.reset();
+		assertEquals(0, allocations.getTotalBytes());
+	}
+
+	@Test
+	public void testTableLimit() throws Exception {
+		LuaState state = LuaState.builder().allocationLimit(64 * 1024).build();
+		Varargs result = run(state, "return pcall(function() local t = {} for i = 1, 1e6 do t[i] = i end end)");
+		assertFalse(result.first().toBoolean());
+		assertTrue(result.arg(2).toString().endsWith("allocation limit exceeded"), result.arg(2).toString());
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+		"local t = {} while true do table.insert(t, 1) end",
+		"local t = {} for i = 1, 1e7 do rawset(t, i, i) end",
+		"local t = {} for i = 1, 1e7 do table.move({ 1, 2, 3, 4 }, 1, 4, i * 4, t) end",
+		"local function f(...) return arg end local t = f() for i = 1, 1e7 do t[i] = i end",
+		"local t = os.date('*t') for i = 1, 1e7 do table.insert(t, i) end",
+		"local t = os.date('*t') for i = 1, 1e7 do rawset(t, i, i) end",
+	})
+	public void testTableGrowthLimit(String code) throws Exception {
+		LuaState state = LuaState.builder().allocationLimit(64 * 1024).build();
+		Varargs result = run(state, "return pcall(function() " + code + " end)");
+		assertFalse(result.first().toBoolean());
+		assertTrue(result.arg(2).toString().endsWith("allocation limit exceeded"), result.arg(2).toString());
+	}
+
+	@Test
+	public void testTableShrinkRefunds() throws Exception {
+		LuaState state = LuaState.builder().allocationLimit(Long.MAX_VALUE).build();
+		run(state, "local t = {} for i = 1, 1000 do t[i] = i end for i = 1, 1000 do t[i] = nil end t.x = 1");
+		assertTrue(state.allocations.getTableBytes() < 1000 * AllocationTracker.ARRAY_SLOT_BYTES, "Refunds shrunk tables");
+	}
+
+	@Test
+	public void testRepeatedConcat() throws Exception {
+		LuaState state = LuaState.builder().allocationLimit(4 << 20).build();
+		run(state, "local s = '' for i = 1, 4000 do s = s .. 'x' end assert(#s == 4000)");
+	}
+
+	@Test
+	public void testFlattenedConcat() throws Exception {
+		LuaState state = LuaState.builder().allocationLimit(64 * 1024).build();
+		Varargs result = run(state, "return pcall(function() local s = ('x'):rep(1000) for i = 1, 1e6 do s = s .. 'x' local _ = s == '' end end)");
+		assertFalse(result.first().toBoolean());
+		assertTrue(result.arg(2).toString().endsWith("allocation limit exceeded"), result.arg(2).toString());
+	}
+
+	@Test
+	public void testStringLimit() throws Exception {
+		LuaState state = LuaState.builder().allocationLimit(64 * 1024).build();
+		Varargs result = run(state, "return pcall(string.rep, 'x', 1e9)");
+		assertFalse(result.first().toBoolean());
+		assertTrue(result.arg(2).toString().endsWith("allocation limit exceeded"), result.arg(2).toString());
+	}
+}
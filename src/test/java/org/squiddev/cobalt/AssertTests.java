@@ -42,7 +42,7 @@ import static org.squiddev.cobalt.ValueFactory.valueOf;
  */
 public class AssertTests {
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
-	@ValueSource(strings = {"table-hash-01", "table-hash-02", "table-hash-03"})
+	@ValueSource(strings = {"table-hash-01", "table-hash-02", "table-hash-03", "table-iterate", "table-move"})
 	public void tables(String name) throws IOException, CompileException, LuaError, InterruptedException {
 		ScriptHelper helpers = new ScriptHelper("/assert/table/");
 		helpers.setup();
@@ -62,13 +62,16 @@ public class AssertTests {
 		"lex-context",
 		"lex-number",
 		"load-error",
+		"metamethod-cache",
 		"modulo-large",
+		"multi-return",
 		"no-unwind",
 		"number-format",
 		"string-compare",
 		"string-issues",
 		"string-format",
 		"table",
+		"tail-call",
 		"time",
 		"tonumber",
 		"traceback",
@@ -55,7 +55,7 @@ public class CoroutineTest {
 
 	public static String[] getTests() {
 		return new String[]{
-			"basic", "debug", "gsub", "ops", "pcall", "resume-boundary", "table", "tail", "yield-boundary", "xpcall",
+			"basic", "debug", "gsub", "ops", "pcall", "pool", "resume-boundary", "table", "tail", "yield-boundary", "xpcall",
 		};
 	}
 
@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.ZeroArgFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Ensures the main thread is run on the thread which called {@link LuaThread#runMain(LuaState, LuaFunction)} when
+ * {@link LuaState.Builder#inlineMainThread(boolean)} is set, only using the coroutine executor once another coroutine
+ * is resumed.
+ */
+@Timeout(10)
+public class InlineRunTest {
+	private final AtomicInteger submitted = new AtomicInteger();
+	private LuaState state;
+	private LuaTable globals;
+	private Thread luaThread;
+
+	@BeforeEach
+	public void setup() {
+		state = LuaState.builder()
+			.coroutineExecutor(task -> {
+				submitted.incrementAndGet();
+				Thread thread = new Thread(task, "Coroutine");
+				thread.setDaemon(true);
+				thread.start();
+			})
+			.inlineMainThread(true)
+			.build();
+
+		setupGlobals();
+	}
+
+	private void setupGlobals() {
+		globals = JsePlatform.standardGlobals(state);
+		globals.rawset("record", new ZeroArgFunction() {
+			@Override
+			public LuaValue call(LuaState state) {
+				luaThread = Thread.currentThread();
+				return Constants.NONE;
+			}
+		});
+		globals.rawset("suspendBlocking", new ZeroArgFunction() {
+			@Override
+			public LuaValue call(LuaState state) throws LuaError {
+				OperationHelper.noUnwind(state, () -> LuaThread.suspend(state));
+				return valueOf("resumed");
+			}
+		});
+	}
+
+	private Varargs run(String code) throws Exception {
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test", globals);
+		return LuaThread.runMain(state, function);
+	}
+
+	@Test
+	public void testRunsOnCallingThread() throws Exception {
+		Varargs result = run("record() return 1, 2");
+		assertEquals(valueOf(1), result.arg(1));
+		assertEquals(valueOf(2), result.arg(2));
+		assertSame(Thread.currentThread(), luaThread);
+		assertEquals(0, submitted.get());
+	}
+
+	@Test
+	public void testErrorsOnCallingThread() throws Exception {
+		LuaError error = assertThrows(LuaError.class, () -> run("error('oh no', 0)"));
+		assertEquals("oh no", error.value.toString());
+		assertEquals(0, submitted.get());
+	}
+
+	@Test
+	public void testCoroutinesUseExecutor() throws Exception {
+		Varargs result = run("" +
+			"local co = coroutine.create(function(x) record() local y = coroutine.yield(x + 1) return y * 2 end)\n" +
+			"local _, a = coroutine.resume(co, 1)\n" +
+			"local _, b = coroutine.resume(co, 5)\n" +
+			"return a, b");
+		assertEquals(valueOf(2), result.arg(1));
+		assertEquals(valueOf(10), result.arg(2));
+		assertNotSame(Thread.currentThread(), luaThread);
+		assertTrue(submitted.get() > 0);
+
+		// And later calls run on the calling thread again.
+		submitted.set(0);
+		run("record()");
+		assertSame(Thread.currentThread(), luaThread);
+		assertEquals(0, submitted.get());
+	}
+
+	@Test
+	public void testSuspendAcrossJavaCallRequiresExecutor() {
+		LuaError error = assertThrows(LuaError.class, () -> run("return suspendBlocking()"));
+		assertEquals("test:1: cannot suspend main thread across a Java call", error.value.toString());
+	}
+
+	@Test
+	public void testNotInlineByDefault() throws Exception {
+		state = LuaState.builder().build();
+		setupGlobals();
+
+		run("record()");
+		assertNotSame(Thread.currentThread(), luaThread);
+	}
+
+	@Test
+	public void testSuspendAcrossJavaCall() throws Exception {
+		state = LuaState.builder().build();
+		setupGlobals();
+
+		assertNull(run("return suspendBlocking()"));
+		assertEquals(valueOf("resumed"), LuaThread.run(state.getMainThread(), Constants.NONE).first());
+	}
+}
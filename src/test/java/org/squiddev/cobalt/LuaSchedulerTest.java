@@ -0,0 +1,275 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.debug.DebugFrame;
+import org.squiddev.cobalt.function.AsyncFunction;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.OneArgFunction;
+import org.squiddev.cobalt.function.ResumableVarArgFunction;
+import org.squiddev.cobalt.function.ZeroArgFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+@Timeout(30)
+public class LuaSchedulerTest {
+	private LuaScheduler scheduler;
+
+	@AfterEach
+	public void tearDown() throws InterruptedException {
+		if (scheduler != null) {
+			scheduler.close();
+			assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+		}
+	}
+
+	private static LuaFunction load(LuaState state, LuaTable globals, String code) throws Exception {
+		return LoadState.load(state, new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test", globals);
+	}
+
+	@Test
+	public void testRunsToCompletion() throws Exception {
+		scheduler = LuaScheduler.builder().workers(2).build();
+		LuaState state = scheduler.stateBuilder().build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+
+		LuaScheduler.Task task = scheduler.spawn(state, load(state, globals, "local x = ... return x + 1, 'done'"), valueOf(1));
+		Varargs result = task.getResult().get();
+		assertEquals(valueOf(2), result.arg(1));
+		assertEquals(valueOf("done"), result.arg(2));
+	}
+
+	@Test
+	public void testRunsOnWorker() throws Exception {
+		scheduler = LuaScheduler.builder().workers(1).build();
+		LuaState state = scheduler.stateBuilder().build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		globals.rawset("threadName", new ZeroArgFunction() {
+			@Override
+			public LuaValue call(LuaState state) {
+				return valueOf(Thread.currentThread().getName());
+			}
+		});
+
+		LuaScheduler.Task task = scheduler.spawn(state, load(state, globals, "return threadName()"), Constants.NONE);
+		String name = task.getResult().get().first().toString();
+		assertTrue(name.startsWith("Lua-scheduler-"), name);
+	}
+
+	/**
+	 * Resuming a coroutine from inside a Java call blocks the main thread, and so that coroutine cannot be suspended.
+	 */
+	@Test
+	public void testCannotSuspendWhileMainBlocked() throws Exception {
+		scheduler = LuaScheduler.builder().workers(1).build();
+		LuaState state = scheduler.stateBuilder().build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		globals.rawset("canSuspend", new ZeroArgFunction() {
+			@Override
+			public LuaValue call(LuaState state) {
+				return valueOf(LuaScheduler.canSuspend(state));
+			}
+		});
+
+		globals.rawset("callBlocking", new OneArgFunction() {
+			@Override
+			public LuaValue call(LuaState state, LuaValue function) throws LuaError {
+				return OperationHelper.noUnwind(state, () -> OperationHelper.call(state, function));
+			}
+		});
+
+		LuaScheduler.Task task = scheduler.spawn(state, load(state, globals, "" +
+			"local function check() return coroutine.wrap(function() return canSuspend() end)() end\n" +
+			"return callBlocking(check), check()"), Constants.NONE);
+		Varargs result = task.getResult().get();
+		assertEquals(Constants.FALSE, result.arg(1));
+		assertEquals(Constants.TRUE, result.arg(2));
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		scheduler = LuaScheduler.builder().workers(1).build();
+		LuaState state = scheduler.stateBuilder().build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+
+		LuaScheduler.Task task = scheduler.spawn(state, load(state, globals, "error('oh no', 0)"), Constants.NONE);
+		ExecutionException e = assertThrows(ExecutionException.class, () -> task.getResult().get());
+		assertEquals("oh no", ((LuaError) e.getCause()).value.toString());
+	}
+
+	/**
+	 * Run a busy loop and a task which stops it on a single worker. This will only terminate if the busy loop is
+	 * preempted.
+	 */
+	@Test
+	public void testPreempts() throws Exception {
+		scheduler = LuaScheduler.builder().workers(1).instructionBudget(1000).build();
+		AtomicBoolean stop = new AtomicBoolean();
+
+		LuaState spinState = scheduler.stateBuilder().build();
+		LuaTable spinGlobals = JsePlatform.standardGlobals(spinState);
+		spinGlobals.rawset("stopped", new ZeroArgFunction() {
+			@Override
+			public LuaValue call(LuaState state) {
+				return valueOf(stop.get());
+			}
+		});
+		LuaScheduler.Task spin = scheduler.spawn(spinState, load(spinState, spinGlobals, "" +
+			"local n = 0\n" +
+			"while not stopped() do\n" +
+			"  local co = coroutine.wrap(function() for i = 1, 10 do coroutine.yield(i) end end)\n" +
+			"  for i in co do n = n + i end\n" +
+			"end\n" +
+			"return n > 0"), Constants.NONE);
+
+		LuaState stopState = scheduler.stateBuilder().build();
+		LuaTable stopGlobals = JsePlatform.standardGlobals(stopState);
+		stopGlobals.rawset("stop", new ZeroArgFunction() {
+			@Override
+			public LuaValue call(LuaState state) {
+				stop.set(true);
+				return Constants.NONE;
+			}
+		});
+		LuaScheduler.Task stopper = scheduler.spawn(stopState, load(stopState, stopGlobals, "for i = 1, 5000 do end stop()"), Constants.NONE);
+
+		stopper.getResult().get();
+		assertEquals(Constants.TRUE, spin.getResult().get().first());
+	}
+
+	@Test
+	public void testSuspendUntil() throws Exception {
+		scheduler = LuaScheduler.builder().workers(4).build();
+		List<CompletableFuture<Varargs>> pending = new ArrayList<>();
+		List<LuaScheduler.Task> tasks = new ArrayList<>();
+		AtomicInteger started = new AtomicInteger();
+
+		for (int i = 0; i < 50; i++) {
+			LuaState state = scheduler.stateBuilder().build();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+
+			CompletableFuture<Varargs> future = new CompletableFuture<>();
+			pending.add(future);
+			globals.rawset("fetch", new ResumableVarArgFunction<CompletableFuture<Varargs>>() {
+				@Override
+				protected Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
+					di.state = future;
+					LuaScheduler.suspendUntil(state, future);
+					return future.join();
+				}
+
+				@Override
+				protected Varargs resumeThis(LuaState state, CompletableFuture<Varargs> future, Varargs value) {
+					return future.join();
+				}
+			});
+
+			globals.rawset("start", new ZeroArgFunction() {
+				@Override
+				public LuaValue call(LuaState state) {
+					started.incrementAndGet();
+					return Constants.NONE;
+				}
+			});
+
+			tasks.add(scheduler.spawn(state, load(state, globals, "start() local x = fetch() return x * 2"), Constants.NONE));
+		}
+
+		// Complete the futures while tasks may still be starting, or be part way through suspending.
+		for (int i = 0; i < pending.size(); i++) pending.get(i).complete(valueOf(i));
+
+		for (int i = 0; i < tasks.size(); i++) assertEquals(valueOf(i * 2), tasks.get(i).getResult().get().first());
+		assertEquals(50, started.get());
+	}
+
+	@Test
+	public void testAsyncFunction() throws Exception {
+		scheduler = LuaScheduler.builder().workers(2).build();
+		List<CompletableFuture<Varargs>> pending = new ArrayList<>();
+		List<LuaScheduler.Task> tasks = new ArrayList<>();
+
+		for (int i = 0; i < 50; i++) {
+			LuaState state = scheduler.stateBuilder().build();
+			LuaTable globals = JsePlatform.standardGlobals(state);
+
+			CompletableFuture<Varargs> future = new CompletableFuture<>();
+			pending.add(future);
+			globals.rawset("fetch", new AsyncFunction() {
+				@Override
+				protected CompletionStage<Varargs> invokeAsync(LuaState state, Varargs args) {
+					return future;
+				}
+			});
+
+			tasks.add(scheduler.spawn(state, load(state, globals, "" +
+				"local ok, x = pcall(fetch)\n" +
+				"if ok then return x * 2 else return x end"), Constants.NONE));
+		}
+
+		for (int i = 0; i < pending.size(); i++) {
+			if (i % 2 == 0) {
+				pending.get(i).complete(valueOf(i));
+			} else {
+				pending.get(i).completeExceptionally(new LuaError("failed " + i, 0));
+			}
+		}
+
+		for (int i = 0; i < tasks.size(); i++) {
+			Varargs result = tasks.get(i).getResult().get();
+			assertEquals(i % 2 == 0 ? valueOf(i * 2) : valueOf("failed " + i), result.first());
+		}
+	}
+
+	@Test
+	public void testAsyncFunctionWithoutScheduler() throws Exception {
+		LuaState state = LuaState.builder().build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		globals.rawset("fetch", new AsyncFunction() {
+			@Override
+			protected CompletionStage<Varargs> invokeAsync(LuaState state, Varargs args) {
+				return CompletableFuture.supplyAsync(() -> valueOf("fetched"));
+			}
+		});
+
+		assertEquals(valueOf("fetched"), LuaThread.runMain(state, load(state, globals, "return fetch()")).first());
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class LuaStatePoolTest {
+	private static Varargs run(LuaStatePool.Lease lease, String code) throws Exception {
+		LuaState state = lease.getState();
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test", lease.getGlobals());
+		return LuaThread.runMain(state, function);
+	}
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		LuaStatePool pool = LuaStatePool.builder().capacity(2).prewarm(1).build();
+		assertEquals(1, pool.getIdle());
+
+		LuaStatePool.Lease first = pool.acquire();
+		LuaStatePool.Lease second = pool.acquire();
+		assertNotSame(first.getState(), second.getState());
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+
+		first.close();
+		second.close();
+		assertEquals(2, pool.getIdle());
+		assertEquals(2, pool.getResets());
+		assertThrows(IllegalStateException.class, first::getState);
+
+		try (LuaStatePool.Lease third = pool.acquire()) {
+			assertEquals(valueOf(3), run(third, "return 1 + 2").first());
+		}
+		assertEquals(2, pool.getHits());
+	}
+
+	@Test
+	public void testResetsGlobals() throws Exception {
+		LuaStatePool pool = LuaStatePool.builder().capacity(1).initialiser(JsePlatform::debugGlobals).build();
+
+		LuaState state;
+		try (LuaStatePool.Lease lease = pool.acquire()) {
+			state = lease.getState();
+			run(lease, "" +
+				"x = 1\n" +
+				"string.upper = nil\n" +
+				"string.extra = true\n" +
+				"getmetatable('').__index = { len = function() return 0 end }\n" +
+				"package.loaded.extra = {}\n" +
+				"setmetatable(_G, { __index = function() return 'missing' end })\n" +
+				"debug.sethook(function() end, '', 1)\n" +
+				"debug.setmetatable(1, { __index = string })\n");
+		}
+
+		try (LuaStatePool.Lease lease = pool.acquire()) {
+			assertSame(state, lease.getState());
+			Varargs result = run(lease, "" +
+				"return x, string.extra, ('a'):upper(), ('abc'):len(), package.loaded.extra, getmetatable(_G)," +
+				"  debug.gethook(), getmetatable(1), package.loaded.string == string");
+			assertEquals(Constants.NIL, result.arg(1));
+			assertEquals(Constants.NIL, result.arg(2));
+			assertEquals(valueOf("A"), result.arg(3));
+			assertEquals(valueOf(3), result.arg(4));
+			assertEquals(Constants.NIL, result.arg(5));
+			assertEquals(Constants.NIL, result.arg(6));
+			assertEquals(Constants.NIL, result.arg(7));
+			assertEquals(Constants.NIL, result.arg(8));
+			assertEquals(Constants.TRUE, result.arg(9));
+		}
+	}
+
+	@Test
+	public void testResetsAfterError() throws Exception {
+		LuaStatePool pool = LuaStatePool.builder().capacity(1).build();
+
+		try (LuaStatePool.Lease lease = pool.acquire()) {
+			assertThrows(LuaError.class, () -> run(lease, "local co = coroutine.create(function() coroutine.yield() end) coroutine.resume(co) error('oh no')"));
+		}
+
+		try (LuaStatePool.Lease lease = pool.acquire()) {
+			assertEquals(valueOf("ok"), run(lease, "return 'ok'").first());
+		}
+		assertEquals(1, pool.getHits());
+		assertEquals(0, pool.getDiscards());
+	}
+}
@@ -24,7 +24,6 @@
  */
 package org.squiddev.cobalt;
 
-import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
@@ -38,7 +37,6 @@ import java.io.ByteArrayInputStream;
 import java.lang.ref.WeakReference;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -62,7 +60,6 @@ public class OrphanedThreadTest {
 
 	@BeforeEach
 	public void setup() {
-		LuaThread.orphanCheckInterval = TimeUnit.MILLISECONDS.toNanos(5);
 		state = new LuaState.Builder()
 			// Our executor keeps track of how many threads we're using
 			.coroutineExecutor(f -> executor.execute(() -> {
@@ -85,11 +82,6 @@ public class OrphanedThreadTest {
 		});
 	}
 
-	@AfterEach
-	public void tearDown() {
-		LuaThread.orphanCheckInterval = TimeUnit.SECONDS.toNanos(30);
-	}
-
 	@Test
 	public void testCollectOrphanedNormalThread() throws Exception {
 		function = new NormalFunction();
@@ -194,6 +186,33 @@ public class OrphanedThreadTest {
 		assertEquals(0, active.get(), "Should have no active threads");
 	}
 
+	/**
+	 * Orphan coroutines while the main thread is running. Their threads can only exit once the main thread has finished,
+	 * and should do so without reporting an error to it.
+	 */
+	@Test
+	public void testOrphanWhileRunning() throws Exception {
+		String script =
+			"for i = 1, 5 do\n" +
+				"  local co = coroutine.wrap(function() coroutine.yield(i) end)\n" +
+				"  assert(co() == i)\n" +
+				"end\n" +
+				"for i = 1, 5 do\n" +
+				"  collectgarbage()\n" +
+				"  local t = os.clock() while os.clock() - t < 0.01 do end\n" +
+				"end\n" +
+				"return 'done'\n";
+
+		function = LoadState.load(state, new ByteArrayInputStream(script.getBytes()), "script", env);
+		assertEquals(valueOf("done"), LuaThread.runMain(state, function).first());
+
+		for (int i = 0; i < 200 && active.get() > 0; i++) {
+			Runtime.getRuntime().gc();
+			Thread.sleep(5);
+		}
+		assertEquals(0, active.get(), "Should have no active threads");
+	}
+
 	private void doTest(boolean secondOk, LuaValue secondValue) throws Exception {
 		LuaThread thread = new LuaThread(state, function, env);
 		WeakReference<LuaThread> luaThreadRef = new WeakReference<>(thread);
@@ -230,6 +249,10 @@ public class OrphanedThreadTest {
 		// check reference
 		assertNull(luaThreadRef.get(), "Thread should have been GCed:");
 		assertNull(luaFuncRef.get(), "Function should have been GCed:");
+
+		// And ensure the blocked coroutine has been interrupted.
+		for (int i = 0; i < 100 && active.get() > 0; i++) Thread.sleep(5);
+		assertEquals(0, active.get(), "Should have no active threads");
 	}
 
 
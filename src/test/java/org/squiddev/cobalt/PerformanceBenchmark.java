@@ -30,7 +30,11 @@ import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 import org.openjdk.jmh.runner.options.TimeValue;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
@@ -49,6 +53,30 @@ public class PerformanceBenchmark {
 		}
 	}
 
+	@State(Scope.Thread)
+	public static class TrivialScope {
+		final ScriptHelper helpers = new ScriptHelper("/perf/");
+		LuaFunction function;
+
+		@Setup(Level.Iteration)
+		public void setup() throws Exception {
+			helpers.setup(builder -> builder.inlineMainThread(true));
+			function = LoadState.load(helpers.state, new ByteArrayInputStream("return 1".getBytes(StandardCharsets.UTF_8)), "=trivial", helpers.globals);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Varargs runMainTrivial(TrivialScope scope) throws Exception {
+		return LuaThread.runMain(scope.helpers.state, scope.function);
+	}
+
+	@Benchmark
+	public void append(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("append"), valueOf(100000));
+	}
+
 	@Benchmark
 	public void binarytrees(ScriptScope scope) throws Exception {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("binarytrees"), valueOf(10));
@@ -69,6 +97,11 @@ public class PerformanceBenchmark {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("nsieve"), valueOf(8));
 	}
 
+	@Benchmark
+	public void weakcache(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("weakcache"), valueOf(1000000));
+	}
+
 	public static void main(String... args) throws RunnerException {
 		Options opts = new OptionsBuilder()
 			.include("org.squiddev.cobalt.PerformanceBenchmark.*")
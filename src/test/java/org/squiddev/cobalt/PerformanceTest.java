@@ -44,7 +44,7 @@ public class PerformanceTest {
 	}
 
 	@ParameterizedTest(name = ParameterizedTest.ARGUMENTS_WITH_NAMES_PLACEHOLDER)
-	@ValueSource(strings = {"binarytrees", "fannkuch", "nbody", "nsieve", "primes"})
+	@ValueSource(strings = {"append", "binarytrees", "fannkuch", "nbody", "nsieve", "primes", "weakcache"})
 	public void run(String name) throws IOException, CompileException, LuaError, InterruptedException {
 		System.out.println("[" + name + "]");
 
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.squiddev.cobalt.compiler.LuaC;
+import org.squiddev.cobalt.compiler.StackCompactor;
+import org.squiddev.cobalt.debug.DebugInfoCompactor;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
+import org.squiddev.cobalt.lib.BaseLib;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+/**
+ * Runs a single prototype and set of library tables on several states at once.
+ */
+@Timeout(30)
+public class SharedRuntimeTest {
+	private static final String CODE = "" +
+		"local n = ...\n" +
+		"local parts = {}\n" +
+		"for i = 1, 200 do parts[#parts + 1] = string.format('%d:%s', i, ('x'):rep(i % 5)) end\n" +
+		"table.sort(parts, function(a, b) return #a < #b or (#a == #b and a < b) end)\n" +
+		"local sum = 0\n" +
+		"for _, v in ipairs(parts) do sum = sum + #v:upper() end\n" +
+		"return sum + math.floor(math.sqrt(n * n))";
+
+	@Test
+	public void testSharePrototypeAndLibraries() throws Exception {
+		Prototype prototype = LuaC.compile(new ByteArrayInputStream(CODE.getBytes(StandardCharsets.UTF_8)), "=shared");
+		prototype.share();
+
+		// Set up the libraries once, and freeze them so they can be shared.
+		LuaState template = new LuaState();
+		LuaTable templateGlobals = JsePlatform.standardGlobals(template);
+		LuaTable string = ((LuaTable) templateGlobals.rawget("string")).freeze();
+		LuaTable table = ((LuaTable) templateGlobals.rawget("table")).freeze();
+		LuaTable math = ((LuaTable) templateGlobals.rawget("math")).freeze();
+		LuaTable stringMetatable = template.stringMetatable.freeze();
+
+		int threads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<LuaValue>> results = new ArrayList<>();
+			for (int i = 0; i < threads * 4; i++) {
+				int n = i;
+				results.add(executor.submit(() -> {
+					LuaState state = LuaState.builder().stringMetatable(stringMetatable).build();
+					LuaTable globals = new LuaTable();
+					state.setupThread(globals);
+					globals.load(state, new BaseLib());
+					globals.rawset("string", string);
+					globals.rawset("table", table);
+					globals.rawset("math", math);
+
+					LuaValue result = Constants.NIL;
+					for (int j = 0; j < 50; j++) {
+						result = LuaThread.runMain(state, new LuaInterpretedFunction(prototype, globals), valueOf(n)).first();
+					}
+					return result;
+				}));
+			}
+
+			for (int i = 0; i < results.size(); i++) assertEquals(valueOf(1092 + i), results.get(i).get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSharedPrototypeIsImmutable() throws Exception {
+		Prototype prototype = LuaC.compile(new ByteArrayInputStream("local function f() end return f".getBytes(StandardCharsets.UTF_8)), "=shared");
+		assertSame(prototype, prototype.share());
+		assertTrue(prototype.p[0].isShared());
+
+		assertThrows(IllegalStateException.class, prototype::compactLineInfo);
+		assertThrows(IllegalStateException.class, () -> new DebugInfoCompactor().compact(prototype));
+		assertThrows(IllegalStateException.class, () -> StackCompactor.compact(prototype, null));
+	}
+
+	@Test
+	public void testFrozenLibraryCannotBeModified() throws Exception {
+		LuaState state = new LuaState();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		((LuaTable) globals.rawget("string")).freeze();
+
+		LuaError error = assertThrows(LuaError.class, () -> LuaThread.runMain(state,
+			LuaC.INSTANCE.load(new ByteArrayInputStream("string.upper = nil".getBytes(StandardCharsets.UTF_8)), valueOf("=test"), null, globals)));
+		assertTrue(error.value.toString().contains("frozen"), error.value.toString());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.compiler;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BytecodeBundleTest {
+	private LuaState state;
+	private LuaTable globals;
+
+	@BeforeEach
+	public void setup() {
+		state = new LuaState();
+		globals = JsePlatform.standardGlobals(state);
+	}
+
+	private static Prototype compile(String name, String contents) throws IOException, CompileException {
+		return LuaC.compile(new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8)), "@" + name);
+	}
+
+	private static Map<String, Prototype> prototypes() throws IOException, CompileException {
+		Map<String, Prototype> prototypes = new LinkedHashMap<>();
+		prototypes.put("a", compile("a", "return 'hello' .. ', ' .. 'world'"));
+		prototypes.put("b", compile("b", "local t = {} for i = 1, 10 do t[i] = i * 2.5 end return t[4], #t"));
+		return prototypes;
+	}
+
+	private static void write(OutputStream stream, boolean strip) throws IOException, CompileException {
+		BytecodeBundle.write(stream, prototypes(), strip);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException, CompileException, LuaError, UnwindThrowable {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, false);
+
+		BytecodeBundle bundle = BytecodeBundle.of(ByteBuffer.wrap(out.toByteArray()));
+		assertEquals(Arrays.asList("a", "b"), Arrays.asList(bundle.names().toArray()));
+		assertTrue(bundle.contains("a"));
+		assertNull(bundle.get("c"));
+
+		// Prototypes are decoded once and then shared.
+		assertSame(bundle.get("a"), bundle.get("a"));
+
+		LuaFunction a = bundle.load("a", globals);
+		assertEquals("hello, world", a.call(state).toString());
+
+		Varargs b = bundle.load("b", globals).invoke(state, Constants.NONE);
+		assertEquals(10.0, b.arg(1).toDouble());
+		assertEquals(10, b.arg(2).toInteger());
+	}
+
+	@Test
+	public void testMappedFile() throws IOException, CompileException, LuaError, UnwindThrowable {
+		Path path = Files.createTempFile("cobalt", ".luab");
+		try {
+			try (OutputStream out = Files.newOutputStream(path)) {
+				write(out, true);
+			}
+
+			BytecodeBundle bundle = BytecodeBundle.open(path);
+			assertEquals("hello, world", bundle.load("a", globals).call(state).toString());
+			assertEquals(10, bundle.load("b", globals).invoke(state, Constants.NONE).arg(2).toInteger());
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Test
+	public void testBadBundle() throws IOException, CompileException {
+		assertThrows(CompileException.class, () -> BytecodeBundle.of(ByteBuffer.wrap("\033Lua".getBytes(StandardCharsets.ISO_8859_1))));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, false);
+		byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 8);
+		assertThrows(CompileException.class, () -> BytecodeBundle.of(ByteBuffer.wrap(truncated)));
+	}
+}
@@ -32,9 +32,11 @@ import org.squiddev.cobalt.function.LuaInterpretedFunction;
 import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
 
 
 public class DumpLoadEndianIntTest {
@@ -142,6 +144,12 @@ public class DumpLoadEndianIntTest {
 			actual = r.toString();
 			assertEquals(expectedPostDump, actual);
 
+			// and again directly from a buffer
+			f = new LuaInterpretedFunction(LoadState.loadBinaryChunk(ByteBuffer.wrap(dumped), valueOf("dumped"), null), _G);
+			r = f.call(state);
+			actual = r.toString();
+			assertEquals(expectedPostDump, actual);
+
 			// write test chunk
 			if (System.getProperty(SAVECHUNKS) != null && script.equals(mixedscript)) {
 				new File("build").mkdirs();
@@ -28,11 +28,17 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.DebugLib;
 import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.squiddev.cobalt.ValueFactory.valueOf;
@@ -132,4 +138,82 @@ public class SimpleTests {
 			assertTrue(hc != hd, "hash codes are same: " + hc);
 		}
 	}
+
+	@Test
+	public void testCompileAll() throws Exception {
+		Map<String, InputStream> sources = new LinkedHashMap<>();
+		for (int i = 0; i < 200; i++) {
+			String script = "local name, x = 'chunk" + i + "', " + i + "\n" +
+				"local function f(a, b) return a * b + x end\n" +
+				"return name .. ':' .. f(2, 3)\n";
+			sources.put("@chunk" + i, new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)));
+		}
+
+		Map<String, Prototype> prototypes = LuaC.compileAll(sources);
+		assertEquals(new ArrayList<>(sources.keySet()), new ArrayList<>(prototypes.keySet()));
+
+		int i = 0;
+		for (Prototype p : prototypes.values()) {
+			assertEquals("@chunk" + i, p.source.toString());
+			LuaFunction f = LuaC.INSTANCE.load(p, _G);
+			assertEquals("chunk" + i + ":" + (6 + i), LuaThread.runMain(state, f).first().toString());
+			i++;
+		}
+	}
+
+	@Test
+	public void testCompileAllError() {
+		Map<String, InputStream> sources = new LinkedHashMap<>();
+		sources.put("@good", new ByteArrayInputStream("return 1".getBytes(StandardCharsets.UTF_8)));
+		sources.put("@bad", new ByteArrayInputStream("return return".getBytes(StandardCharsets.UTF_8)));
+
+		CompileException e = assertThrows(CompileException.class, () -> LuaC.compileAll(sources));
+		assertTrue(e.getMessage().startsWith("bad:"), e.getMessage());
+	}
+
+	private static LuaString findConstant(Prototype p, String value) {
+		for (LuaValue k : p.k) {
+			if (k instanceof LuaString && k.toString().equals(value)) return (LuaString) k;
+		}
+		for (Prototype child : p.p) {
+			LuaString k = findConstant(child, value);
+			if (k != null) return k;
+		}
+		return null;
+	}
+
+	@Test
+	public void testConstantPool() throws IOException, CompileException {
+		ConstantPool constants = new ConstantPool();
+		Prototype first = LuaC.compile(new ByteArrayInputStream("return type(x) == 'table'".getBytes(StandardCharsets.UTF_8)), valueOf("first"), null, constants);
+		Prototype second = LuaC.compile(new ByteArrayInputStream("return function(y) return type(y) end".getBytes(StandardCharsets.UTF_8)), valueOf("second"), null, constants);
+
+		assertSame(findConstant(first, "type"), findConstant(second, "type"));
+
+		ByteArrayOutputStream dumped = new ByteArrayOutputStream();
+		DumpState.dump(second, dumped, false);
+		Prototype loaded = LuaC.compile(new ByteArrayInputStream(dumped.toByteArray()), valueOf("loaded"), null, constants);
+		assertSame(findConstant(first, "type"), findConstant(loaded, "type"));
+	}
+
+	@Test
+	public void testStackCompaction() throws IOException, CompileException, LuaError, InterruptedException {
+		String script = "local t, n = { 1, 2, 3 }, 0\n" +
+			"for k, v in pairs(t) do n = n + v end\n" +
+			"return n, debug.getlocal(1, 2)\n";
+		Prototype p = LuaC.compile(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "script");
+
+		int[] sizes = new int[2];
+		StackCompactor.compact(p, (proto, before, after) -> {
+			sizes[0] = before;
+			sizes[1] = after;
+		});
+		assertTrue(sizes[1] < sizes[0], "Expected " + sizes[1] + " < " + sizes[0]);
+		assertEquals(sizes[1], p.maxstacksize);
+
+		_G.load(state, new DebugLib());
+		Varargs result = LuaThread.runMain(state, LuaC.INSTANCE.load(p, _G));
+		assertEquals(6, result.arg(1).toInteger());
+		assertEquals("n", result.arg(2).toString());
+	}
 }
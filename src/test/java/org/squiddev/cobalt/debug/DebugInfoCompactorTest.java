@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.debug;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.CompileException;
+import org.squiddev.cobalt.compiler.LuaC;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DebugInfoCompactorTest {
+	private static Prototype compile(String script) throws IOException, CompileException {
+		return LuaC.compile(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "@script");
+	}
+
+	private static String script() {
+		StringBuilder script = new StringBuilder();
+		script.append("local function f(x)\n  local y = x * 2\n  return y\nend\n");
+		// Enough instructions to need several absolute entries, and gaps too large for a delta.
+		for (int i = 0; i < 300; i++) script.append("f(").append(i).append(")\n");
+		for (int i = 0; i < 500; i++) script.append('\n');
+		script.append("error('oh no')\n");
+		return script.toString();
+	}
+
+	@Test
+	public void testLinesPreserved() throws IOException, CompileException {
+		Prototype original = compile(script());
+		Prototype compacted = compile(script());
+		new DebugInfoCompactor().compact(compacted);
+
+		assertNull(compacted.lineinfo);
+		assertEquals(original.lineInfoLength(), compacted.lineInfoLength());
+		for (int pc = -1; pc <= original.code.length; pc++) {
+			assertEquals(original.lineAt(pc), compacted.lineAt(pc), "Line at " + pc);
+		}
+		assertArrayEquals(original.lineInfo(), compacted.lineInfo());
+		assertArrayEquals(original.p[0].lineInfo(), compacted.p[0].lineInfo());
+	}
+
+	@Test
+	public void testSharesLocals() throws IOException, CompileException {
+		Prototype first = compile(script()), second = compile(script());
+		DebugInfoCompactor compactor = new DebugInfoCompactor();
+		compactor.compact(first);
+		compactor.compact(second);
+
+		assertSame(first.locvars, second.locvars);
+		assertSame(first.p[0].locvars, second.p[0].locvars);
+		assertSame(first.p[0].locvars[0].name, second.p[0].locvars[0].name);
+		assertEquals("x", first.p[0].getlocalname(1, 1).toString());
+	}
+
+	@Test
+	public void testErrorLines() throws IOException, CompileException, InterruptedException {
+		Prototype prototype = compile(script());
+		new DebugInfoCompactor().compact(prototype);
+
+		LuaState state = new LuaState();
+		LuaFunction function = LuaC.INSTANCE.load(prototype, JsePlatform.standardGlobals(state));
+		LuaError error = assertThrows(LuaError.class, () -> LuaThread.runMain(state, function));
+		assertTrue(error.getMessage().startsWith("script:805: oh no"), error.getMessage());
+	}
+}
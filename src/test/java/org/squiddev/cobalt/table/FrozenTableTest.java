@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.table;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.CompileException;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.lib.UncheckedLuaError;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class FrozenTableTest {
+	private static Varargs run(LuaTable config, String code) throws LuaError, CompileException, IOException, InterruptedException {
+		LuaState state = new LuaState();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		globals.rawset("config", config);
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(code.getBytes(StandardCharsets.UTF_8)), "=test", globals);
+		return LuaThread.runMain(state, function);
+	}
+
+	private static LuaTable makeConfig() {
+		LuaTable table = new LuaTable();
+		for (int i = 1; i <= 100; i++) table.rawset(i, valueOf(i));
+		for (int i = 0; i < 100; i++) table.rawset("key" + i, valueOf(i));
+		for (int i = 50; i < 100; i++) table.rawset("key" + i, Constants.NIL);
+		return table;
+	}
+
+	@Test
+	public void testFreezeCompacts() {
+		LuaTable table = makeConfig().freeze();
+		assertTrue(table.isFrozen());
+		assertEquals(100, table.length());
+		assertEquals(64, table.getHashLength());
+		for (int i = 0; i < 50; i++) assertEquals(valueOf(i), table.rawget("key" + i));
+		assertEquals(Constants.NIL, table.rawget("key50"));
+	}
+
+	@Test
+	public void testFrozenRawset() {
+		LuaTable table = makeConfig().freeze();
+		UncheckedLuaError error = assertThrows(UncheckedLuaError.class, () -> table.rawset("key1", valueOf(2)));
+		assertEquals("attempt to modify a frozen table", error.getCause().getMessage());
+		assertThrows(UncheckedLuaError.class, () -> table.rawset(1, Constants.NIL));
+		assertThrows(UncheckedLuaError.class, () -> table.insert(0, valueOf(1)));
+		assertThrows(UncheckedLuaError.class, () -> table.setMetatable(new LuaTable()));
+		assertEquals(valueOf(1), table.rawget("key1"));
+	}
+
+	@Test
+	public void testFrozenWeak() {
+		LuaTable table = new LuaTable();
+		table.useWeak(true, false);
+		assertThrows(IllegalStateException.class, table::freeze);
+	}
+
+	@Test
+	public void testCopyIsMutable() {
+		LuaTable table = makeConfig().freeze();
+		LuaTable copy = table.copy();
+		assertFalse(copy.isFrozen());
+		copy.rawset("key1", valueOf("changed"));
+		assertEquals(valueOf("changed"), copy.rawget("key1"));
+		assertEquals(valueOf(1), table.rawget("key1"));
+	}
+
+	@Test
+	public void testLuaErrors() throws Exception {
+		Varargs result = run(makeConfig().freeze(), "" +
+			"local ok1, err1 = pcall(function() config.key1 = 2 end)\n" +
+			"local ok2 = pcall(table.insert, config, 1)\n" +
+			"local ok3 = pcall(rawset, config, 'x', 1)\n" +
+			"return ok1, err1, ok2, ok3, config.key1, #config");
+		assertFalse(result.arg(1).toBoolean());
+		assertEquals("test:1: attempt to modify a frozen table", result.arg(2).toString());
+		assertFalse(result.arg(3).toBoolean());
+		assertFalse(result.arg(4).toBoolean());
+		assertEquals(valueOf(1), result.arg(5));
+		assertEquals(valueOf(100), result.arg(6));
+	}
+
+	@Test
+	public void testSharedBetweenStates() throws Exception {
+		LuaTable config = makeConfig().freeze();
+		String code = "local n = 0 for _ = 1, 200 do for k, v in pairs(config) do n = n + 1 end end return n";
+
+		Varargs[] results = new Varargs[4];
+		Throwable[] errors = new Throwable[results.length];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; i++) {
+			int index = i;
+			threads[i] = new Thread(() -> {
+				try {
+					results[index] = run(config, code);
+				} catch (Throwable e) {
+					errors[index] = e;
+				}
+			});
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			assertNull(errors[i]);
+			assertEquals(200 * 150, results[i].first().toInteger());
+		}
+	}
+}
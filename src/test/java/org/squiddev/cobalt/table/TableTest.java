@@ -271,6 +271,33 @@ public class TableTest {
 		}
 	}
 
+	@Test
+	public void testLengthWithInteriorHoles() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 1000; i++) t.rawset(i, valueOf(i));
+		assertEquals(1000, t.length());
+
+		t.rawset(2, Constants.NIL);
+		assertEquals(1000, t.length());
+
+		t.rawset(500, Constants.NIL);
+		assertEquals(1000, t.length());
+
+		// Clearing the last element moves the border down.
+		t.rawset(1000, Constants.NIL);
+		assertEquals(999, t.length());
+	}
+
+	@Test
+	public void testLengthAfterSparseInsert() {
+		LuaTable t = new LuaTable(3, 0);
+		for (int i = 1; i <= 3; i++) t.rawset(i, valueOf(i));
+		assertEquals(3, t.length());
+
+		t.insert(5, valueOf(9));
+		assertEquals(5, t.length());
+	}
+
 	private void compareLists(LuaTable t, Vector<LuaString> v) throws LuaError, UnwindThrowable {
 		int n = v.size();
 		assertEquals(v.size(), OperationHelper.length(state, t).toInteger());
@@ -367,4 +394,96 @@ public class TableTest {
 		}
 	}
 
+	@Test
+	public void testMoveOverlapping() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 10; i++) t.rawset(i, valueOf(i));
+
+		// Shift up within the array part, and then into the hash part.
+		t.move(1, 10, t, 3);
+		t.move(1, 12, t, 100);
+		for (int i = 1; i <= 10; i++) {
+			assertEquals(valueOf(i), t.rawget(i + 2));
+			assertEquals(valueOf(i), t.rawget(i + 101));
+		}
+
+		// And back down again.
+		t.move(102, 111, t, 1);
+		for (int i = 1; i <= 10; i++) assertEquals(valueOf(i), t.rawget(i));
+	}
+
+	@Test
+	public void testSliceAndFill() {
+		LuaTable t = new LuaTable();
+		t.fill(1, 20, valueOf("x"));
+		t.rawset(5, valueOf("y"));
+		assertEquals(20, t.length());
+
+		LuaTable slice = t.slice(4, 6);
+		assertEquals(3, slice.length());
+		assertEquals(valueOf("x"), slice.rawget(1));
+		assertEquals(valueOf("y"), slice.rawget(2));
+		assertEquals(valueOf("x"), slice.rawget(3));
+
+		t.fill(11, 20, Constants.NIL);
+		assertEquals(10, t.length());
+	}
+
+	@Test
+	public void testSliceLargeRange() {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 3; i++) t.rawset(i, valueOf(i));
+
+		// Only the first few elements exist, so this shouldn't try to preallocate the whole range.
+		LuaTable slice = t.slice(1, 1 << 20);
+		assertThat(slice.getArrayLength(), lessThanOrEqualTo(4));
+		assertEquals(3, slice.length());
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		LuaTable original = new LuaTable();
+		for (int i = 1; i <= 10; i++) original.rawset(i, valueOf(i));
+		original.rawset("a", valueOf("a"));
+
+		LuaTable metatable = new LuaTable();
+		original.setMetatable(metatable);
+
+		LuaTable copy = original.copy();
+		assertSame(metatable, copy.getMetatable(null));
+		assertEquals(10, copy.length());
+		assertEquals(valueOf("a"), copy.rawget("a"));
+
+		// Writes to the copy are not visible in the original.
+		copy.rawset(1, valueOf("one"));
+		copy.rawset("a", Constants.NIL);
+		copy.rawset("b", valueOf("b"));
+		copy.insert(0, valueOf(11));
+		assertEquals(valueOf(1), original.rawget(1));
+		assertEquals(valueOf("a"), original.rawget("a"));
+		assertEquals(Constants.NIL, original.rawget("b"));
+		assertEquals(10, original.length());
+
+		// Nor are writes to the original visible in a second copy.
+		LuaTable second = original.copy();
+		original.remove(1);
+		original.rawset("a", valueOf("changed"));
+		assertEquals(valueOf(1), second.rawget(1));
+		assertEquals(valueOf("a"), second.rawget("a"));
+		assertEquals(10, second.length());
+	}
+
+	@Test
+	public void testCopyWeak() {
+		LuaTable original = new LuaTable();
+		original.useWeak(false, true);
+		LuaTable value = new LuaTable();
+		original.rawset(1, value);
+		original.rawset("a", value);
+
+		LuaTable copy = original.copy();
+		copy.rawset("a", Constants.NIL);
+		assertSame(value, copy.rawget(1));
+		assertSame(value, original.rawget("a"));
+	}
 }
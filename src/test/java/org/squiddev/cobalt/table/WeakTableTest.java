@@ -35,6 +35,7 @@ import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.squiddev.cobalt.Constants.NIL;
 import static org.squiddev.cobalt.ValueFactory.userdataOf;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
 
 public abstract class WeakTableTest {
 	protected final LuaState state = new LuaState();
@@ -121,6 +122,60 @@ public abstract class WeakTableTest {
 			assertFalse(OperationHelper.getTable(state, t, ValueFactory.valueOf("string")).isNil(), "strings should not be in weak references");
 		}
 
+		@Test
+		public void testMoveBetweenWeakTables() {
+			LuaTable source = ValueFactory.weakTable(false, true);
+			LuaTable dest = ValueFactory.weakTable(false, true);
+
+			LuaTable kept = new LuaTable();
+			source.rawset(1, kept);
+			source.rawset(2, new LuaTable());
+			source.rawset(3, valueOf("string"));
+
+			source.move(1, 3, dest, 1);
+			source.move(1, 3, source, 2);
+
+			collectGarbage();
+
+			assertSame(kept, dest.rawget(1));
+			assertEquals(NIL, dest.rawget(2));
+			assertEquals(valueOf("string"), dest.rawget(3));
+
+			assertSame(kept, source.rawget(2));
+			assertEquals(NIL, source.rawget(3));
+			assertEquals(valueOf("string"), source.rawget(4));
+
+			// Moving into a strong table keeps the values alive.
+			LuaTable strong = new LuaTable();
+			dest.rawset(2, new LuaTable());
+			dest.move(1, 3, strong, 1);
+			collectGarbage();
+			assertSame(kept, strong.rawget(1));
+			assertFalse(strong.rawget(2).isNil());
+		}
+
+		@Test
+		public void testResizePreservesWeakness() {
+			LuaTable t = ValueFactory.weakTable(false, true);
+
+			LuaTable kept = new LuaTable();
+			t.rawset(1, kept);
+			t.rawset(2, new LuaTable());
+			t.rawset("kept", kept);
+			t.rawset("dropped", new LuaTable());
+
+			// Force several resizes of both parts.
+			for (int i = 3; i <= 100; i++) t.rawset(i, kept);
+			for (int i = 0; i < 100; i++) t.rawset("key" + i, kept);
+
+			collectGarbage();
+
+			assertSame(kept, t.rawget(1));
+			assertEquals(NIL, t.rawget(2));
+			assertSame(kept, t.rawget("kept"));
+			assertEquals(NIL, t.rawget("dropped"));
+		}
+
 		@Test
 		public void testChangeMode() throws LuaError, UnwindThrowable {
 			LuaTable table = new LuaTable();
@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.vm;
+
+import org.junit.jupiter.api.Test;
+import org.squiddev.cobalt.Constants;
+import org.squiddev.cobalt.LuaValue;
+import org.squiddev.cobalt.ValueFactory;
+import org.squiddev.cobalt.Varargs;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
+
+public class VarargsTest {
+	private static LuaValue[] values(int start, int count) {
+		LuaValue[] values = new LuaValue[count];
+		for (int i = 0; i < count; i++) values[i] = valueOf(start + i);
+		return values;
+	}
+
+	private static void assertValues(Varargs varargs, int start, int count) {
+		assertEquals(count, varargs.count());
+		for (int i = 0; i < count; i++) assertEquals(valueOf(start + i), varargs.arg(i + 1), "Argument " + (i + 1));
+		assertEquals(Constants.NIL, varargs.arg(count + 1));
+	}
+
+	/**
+	 * A mixture of the various varargs implementations, containing 1 to 12.
+	 */
+	private static Varargs mixed() {
+		Varargs tail = ValueFactory.varargsOf(values(10, 3), 0, 3);
+		Varargs middle = ValueFactory.varargsOf(values(5, 5), 1, 4, tail);
+		return ValueFactory.varargsOf(valueOf(1), valueOf(2), ValueFactory.varargsOf(values(3, 3), middle).subargs(1).subargs(1));
+	}
+
+	@Test
+	public void testMixed() {
+		assertValues(mixed(), 1, 12);
+		assertValues(mixed().asImmutable(), 1, 12);
+	}
+
+	@Test
+	public void testRepeatedSubargs() {
+		Varargs varargs = ValueFactory.varargsOf(values(1, 100));
+		for (int i = 1; i < 90; i++) {
+			varargs = varargs.subargs(2);
+			assertValues(varargs, i + 1, 100 - i);
+		}
+	}
+
+	@Test
+	public void testForwardingChainIsBounded() {
+		// Emulates function f(...) return g(x, ...) end
+		Varargs varargs = ValueFactory.varargsOf(values(1, 3));
+		for (int i = 0; i < 50; i++) varargs = ValueFactory.varargsOf(valueOf(0), varargs).subargs(2);
+
+		assertValues(varargs, 1, 3);
+		assertValues(varargs.subargs(2), 2, 2);
+	}
+
+	@Test
+	public void testCopyTo() {
+		Varargs varargs = mixed();
+		for (int start = 1; start <= 14; start++) {
+			for (int length = 0; length <= 14; length++) {
+				LuaValue[] out = new LuaValue[length + 2];
+				varargs.copyTo(out, 1, start, length);
+
+				assertNull(out[0]);
+				assertNull(out[length + 1]);
+				for (int i = 0; i < length; i++) {
+					assertEquals(varargs.arg(start + i), out[i + 1], "start=" + start + ", length=" + length + ", i=" + i);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFill() {
+		Varargs varargs = mixed();
+		LuaValue[] out = new LuaValue[13];
+		varargs.fill(out, 1);
+		assertNull(out[0]);
+		for (int i = 1; i <= 12; i++) assertEquals(valueOf(i), out[i]);
+	}
+
+	@Test
+	public void testImmutableArrayPart() {
+		LuaValue[] stack = values(1, 4);
+		Varargs varargs = ValueFactory.varargsOf(values(1, 3), ValueFactory.varargsOf(stack, 0, 4)).asImmutable();
+		stack[0] = Constants.NIL;
+
+		assertValues(varargs.subargs(4), 1, 4);
+	}
+}
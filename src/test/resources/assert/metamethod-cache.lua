@@ -0,0 +1,70 @@
+--- Tests that metamethods added after a failed lookup are still found, as absent metamethods are cached on the metatable.
+
+local mt = {}
+local a, b = setmetatable({}, mt), setmetatable({}, mt)
+
+local function fails(f, ...) return not pcall(f, ...) end
+
+-- Look up every event while it is absent, then define it.
+assert(fails(function() return a + 1 end))
+mt.__add = function() return "add" end
+assert(a + 1 == "add" and 1 + a == "add")
+
+assert(fails(function() return a - 1 end))
+assert(fails(function() return a * 1 end))
+assert(fails(function() return a / 1 end))
+assert(fails(function() return a % 1 end))
+assert(fails(function() return a ^ 1 end))
+assert(fails(function() return -a end))
+mt.__sub = function() return "sub" end
+mt.__mul = function() return "mul" end
+mt.__div = function() return "div" end
+mt.__mod = function() return "mod" end
+mt.__pow = function() return "pow" end
+mt.__unm = function() return "unm" end
+assert(a - 1 == "sub" and a * 1 == "mul" and a / 1 == "div")
+assert(a % 1 == "mod" and a ^ 1 == "pow" and -a == "unm")
+
+assert(fails(function() return a .. "x" end))
+mt.__concat = function() return "concat" end
+assert(a .. "x" == "concat" and "x" .. a == "concat")
+
+assert(fails(function() return a < b end))
+assert(fails(function() return a <= b end))
+mt.__lt = function() return true end
+assert(a < b)
+assert(not (a <= b)) -- __le falls back to not (b < a)
+mt.__le = function() return true end
+assert(a <= b)
+
+assert(fails(function() return a() end))
+mt.__call = function(self, x) return x end
+assert(a(5) == 5)
+
+assert(tostring(a):find("^table: "))
+mt.__tostring = function() return "custom" end
+assert(tostring(a) == "custom")
+
+for _ in pairs(a) do error("a is empty") end
+mt.__pairs = function() return function() return nil end, a, nil end
+assert(pairs(a) ~= next)
+
+assert(getmetatable(a) == mt)
+mt.__metatable = "locked"
+assert(getmetatable(a) == "locked")
+assert(fails(setmetatable, a, {}))
+
+-- Removing a metamethod is also observed.
+mt.__add = nil
+assert(fails(function() return a + 1 end))
+
+-- Metatables shared between several values are updated for all of them.
+assert(b(7) == 7)
+mt.__call = nil
+assert(fails(function() return b(7) end))
+
+-- __mode is read when the metatable is set
+local weak = {}
+local wt = setmetatable({}, weak)
+weak.__mode = "k"
+setmetatable(wt, weak)
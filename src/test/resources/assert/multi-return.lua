@@ -0,0 +1,80 @@
+--- Tests that values are passed correctly between interpreted functions, both
+-- with fixed and open-ended argument and result counts.
+
+local function none() end
+local function one() return 1 end
+local function three() return 1, 2, 3 end
+local function many() return 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 end
+local function forward(...) return ... end
+local function open() return three() end
+local function mixed() return 0, three() end
+
+-- Fixed results are padded with nil and truncated.
+do
+	local a, b, c = none()
+	assert(a == nil and b == nil and c == nil)
+
+	local a, b, c = one()
+	assert(a == 1 and b == nil and c == nil)
+
+	local a, b = three()
+	assert(a == 1 and b == 2)
+
+	local a, b, c, d, e = mixed()
+	assert(a == 0 and b == 1 and c == 2 and d == 3 and e == nil)
+
+	local a, b, c, d = open()
+	assert(a == 1 and b == 2 and c == 3 and d == nil)
+end
+
+-- Open results are passed on in full.
+assert(select('#', none()) == 0)
+assert(select('#', three()) == 3)
+assert(select('#', many()) == 10)
+assert(select('#', mixed()) == 4)
+assert(select('#', forward(nil, nil)) == 2)
+assert(select('#', forward(many())) == 10)
+assert(select(10, forward(many())) == 10)
+
+do
+	local t = { many() }
+	assert(#t == 10 and t[10] == 10)
+
+	local t = { 0, mixed() }
+	assert(#t == 5 and t[1] == 0 and t[2] == 0 and t[5] == 3)
+end
+
+-- Fixed parameters are filled from a mixture of registers and open values.
+do
+	local function params(a, b, c, d, e, f, ...)
+		return select('#', ...), a, b, c, d, e, f
+	end
+
+	local n, a, b, c, d, e, f = params(1, 2, 3, 4, 5, 6, 7, 8)
+	assert(n == 2 and a == 1 and f == 6)
+
+	local n, a, b, c, d, e, f = params(0, many())
+	assert(n == 5 and a == 0 and b == 1 and f == 5)
+
+	local n, a, b, c, d, e, f = params(0, 0, 0, 0, three())
+	assert(n == 1 and a == 0 and e == 1 and f == 2)
+
+	local n, a, b, c, d, e, f = params(0, 0, 0, 0, 0, 0, 0, three())
+	assert(n == 4 and f == 0)
+
+	local n, a, b, c, d, e, f = params(0, 0, 0, 0, 0, none())
+	assert(n == 0 and e == 0 and f == nil)
+end
+
+-- Results which don't fit in the caller's registers are still passed on.
+do
+	local function big()
+		local t = {}
+		for i = 1, 300 do t[i] = i end
+		return unpack(t)
+	end
+
+	local function small() return big() end
+	assert(select('#', small()) == 300)
+	assert(select(300, small()) == 300)
+end
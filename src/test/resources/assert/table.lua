@@ -51,3 +51,22 @@ while coroutine.status(go) ~= "dead" do
 end
 
 assert(count == 5) -- initial call + 4 yields
+
+-- table.sort on homogeneous arrays of numbers and strings
+local numbers = { 3, 1.5, -2, 10, 0, 1e10, -1e10, 7 }
+table.sort(numbers)
+same(numbers, { -1e10, -2, 0, 1.5, 3, 7, 10, 1e10 })
+
+local strings = { "b", "a", "ab", "", "B", "aa" }
+table.sort(strings)
+same(strings, { "", "B", "a", "aa", "ab", "b" })
+
+-- Mixed types still error
+assert(not pcall(table.sort, { 1, "a", 2 }))
+
+-- Already sorted and reversed inputs, with a comparator
+local sorted, reversed = {}, {}
+for i = 1, 100 do sorted[i], reversed[i] = i, 101 - i end
+table.sort(sorted, function(a, b) return a < b end)
+table.sort(reversed, function(a, b) return a < b end)
+same(sorted, reversed)
@@ -0,0 +1,71 @@
+--- Tests iterating over tables with pairs and ipairs, which the interpreter handles without calling next.
+
+local function count(t)
+	local n = 0
+	for _ in pairs(t) do n = n + 1 end
+	return n
+end
+
+-- Iterates over both the array and hash part
+local t = { 1, 2, 3, a = 1, b = 2, c = 3 }
+local seen = {}
+for k, v in pairs(t) do
+	assert(seen[k] == nil, "Duplicate key " .. tostring(k))
+	seen[k] = v
+end
+for k, v in pairs(t) do assert(seen[k] == v) end
+assert(count(seen) == 6)
+
+-- Matches the order of next
+local k, v = next(t)
+for k2, v2 in pairs(t) do
+	assert(k == k2 and v == v2)
+	k, v = next(t, k)
+end
+assert(k == nil)
+
+-- Extra loop variables are nil
+for k, v, extra in pairs({ a = 1 }) do assert(k == "a" and v == 1 and extra == nil) end
+for i, v, extra in ipairs({ 5 }) do assert(i == 1 and v == 5 and extra == nil) end
+
+-- Assigning and clearing existing fields during traversal is allowed
+local big = {}
+for i = 1, 1000 do big["key" .. i] = i end
+for k, v in pairs(big) do big[k] = v * 2 end
+for k, v in pairs(big) do assert(v == tonumber(k:sub(4)) * 2) end
+for k in pairs(big) do big[k] = nil end
+assert(next(big) == nil)
+
+-- Nested traversals of the same table
+local nested = { a = 1, b = 2, c = 3, d = 4 }
+local pairCount = 0
+for k1 in pairs(nested) do
+	for k2 in pairs(nested) do pairCount = pairCount + 1 end
+end
+assert(pairCount == 16)
+
+-- ipairs stops at the first nil
+local sum = 0
+for i, v in ipairs({ 1, 2, nil, 4 }) do sum = sum + v end
+assert(sum == 3)
+
+-- Custom iterators and __pairs are still called
+local calls = 0
+local function iter(t, k)
+	calls = calls + 1
+	return next(t, k)
+end
+for _ in iter, { 1, 2, 3 } do end
+assert(calls == 4)
+
+local proxied = setmetatable({}, { __pairs = function(t) return iter, { x = 1 }, nil end })
+calls = 0
+for k, v in pairs(proxied) do assert(k == "x" and v == 1) end
+assert(calls == 2)
+
+-- Invalid keys still error
+local ok, err = pcall(function()
+	local t = { a = 1 }
+	for k in next, t, "missing" do end
+end)
+assert(not ok and err:find("invalid key to 'next'"), err)
@@ -0,0 +1,75 @@
+--- Tests table.move and table.create
+
+local function check(t, expected)
+	for i = 1, math.max(#t, #expected) do
+		if t[i] ~= expected[i] then
+			error(("Mismatch at %d (%s vs %s)"):format(i, tostring(t[i]), tostring(expected[i])), 2)
+		end
+	end
+end
+
+-- Returns the destination table
+local a = { 1, 2, 3, 4, 5 }
+assert(table.move(a, 1, 3, 1) == a)
+local b = {}
+assert(table.move(a, 1, 3, 1, b) == b)
+check(b, { 1, 2, 3 })
+
+-- Overlapping moves in both directions
+a = { 1, 2, 3, 4, 5 }
+table.move(a, 1, 4, 2)
+check(a, { 1, 1, 2, 3, 4 })
+
+a = { 1, 2, 3, 4, 5 }
+table.move(a, 2, 5, 1)
+check(a, { 2, 3, 4, 5, 5 })
+
+-- Empty ranges do nothing
+a = { 1, 2, 3 }
+table.move(a, 3, 1, 1)
+check(a, { 1, 2, 3 })
+
+-- Moving into and out of the hash part
+a = { 1, 2, 3 }
+table.move(a, 1, 3, 1000)
+assert(a[1000] == 1 and a[1001] == 2 and a[1002] == 3)
+table.move(a, 1000, 1002, 4)
+check(a, { 1, 2, 3, 1, 2, 3 })
+
+-- Holes are copied too
+a = { 1, nil, 3 }
+b = { 9, 9, 9 }
+table.move(a, 1, 3, 1, b)
+assert(b[1] == 1 and b[2] == nil and b[3] == 3)
+
+-- Works as a queue
+local queue = {}
+for i = 1, 100 do queue[i] = i end
+table.move(queue, 51, 100, 1)
+for i = 51, 100 do queue[i] = nil end
+assert(#queue == 50 and queue[1] == 51 and queue[50] == 100)
+
+-- Argument errors
+assert(not pcall(table.move, {}, 1, 2))
+assert(not pcall(table.move, {}, 1, 2, 1, 2))
+local ok, err = pcall(table.move, {}, -1, 2147483647, 1)
+assert(not ok)
+ok, err = pcall(table.move, {}, 1, 2, 2147483647)
+assert(not ok and err:find("destination wrap around"), err)
+
+-- table.create returns an empty table
+local created = table.create(100, 10)
+assert(next(created) == nil and #created == 0)
+for i = 1, 100 do created[i] = i end
+assert(#created == 100)
+created.x = 1
+assert(created.x == 1)
+
+assert(not pcall(table.create, -1))
+assert(not pcall(table.create, 1, -1))
+
+-- table.create rejects sizes which would exhaust memory, rather than trying to allocate them
+ok, err = pcall(table.create, 2^30)
+assert(not ok and err:find("out of range"), err)
+ok, err = pcall(table.create, 0, 2^30 + 1)
+assert(not ok and err:find("out of range"), err)
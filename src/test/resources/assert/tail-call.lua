@@ -0,0 +1,84 @@
+--- Tests that tail calls behave correctly, even though they reuse the calling
+-- function's registers.
+
+-- Deep chains of tail calls should not overflow the stack.
+do
+	local even, odd
+	function even(n) if n == 0 then return true else return odd(n - 1) end end
+	function odd(n) if n == 0 then return false else return even(n - 1) end end
+
+	assert(even(100000) == true)
+	assert(odd(100001) == true)
+end
+
+-- Closures created before the tail call keep their own values.
+do
+	local captured = {}
+	local function big(n, a, b, c, d, e, f, g, h)
+		if n == 0 then return a, b, c, d, e, f, g, h end
+		local x, y, z = n, n * 2, n * 3
+		captured[n] = function() return x, y, z end
+		return big(n - 1, a, b, c, d, e, f, g, h)
+	end
+	local function small(n)
+		local v = n
+		captured[0] = function() return v end
+		return big(n, 1, 2, 3, 4, 5, 6, 7, 8)
+	end
+
+	local a, b, c, d, e, f, g, h = small(5)
+	assert(a == 1 and h == 8)
+	assert(captured[0]() == 5)
+	for i = 1, 5 do
+		local x, y, z = captured[i]()
+		assert(x == i and y == i * 2 and z == i * 3)
+	end
+end
+
+-- Registers are cleared between calls.
+do
+	local function check(a, b, c)
+		local d, e
+		assert(d == nil and e == nil, "locals not cleared")
+		return a, b, c
+	end
+	local function fill(...)
+		local x, y, z, w = 1, 2, 3, 4
+		return check(...)
+	end
+
+	local a, b, c = fill(7)
+	assert(a == 7 and b == nil and c == nil)
+end
+
+-- Arguments and varargs are passed on correctly.
+do
+	local function count(...) return select('#', ...), ... end
+	local function params(a, b, ...) return a, b, count(...) end
+	local function forward(...) return params(...) end
+	local function shift(x, ...) return forward(...) end
+	local function three() return 1, 2, 3 end
+
+	local a, b, n, c = forward(1, 2, 3, 4)
+	assert(a == 1 and b == 2 and n == 2 and c == 3)
+
+	local a, b, n = forward(1)
+	assert(a == 1 and b == nil and n == 0)
+
+	local a, b, n, c = shift(0, three())
+	assert(a == 1 and b == 2 and n == 1 and c == 3)
+
+	local function args(...) return arg.n, arg[1] end
+	local function callArgs(x) return args(x, x) end
+	local n, v = callArgs(5)
+	assert(n == 2 and v == 5)
+end
+
+-- Tail calls are still visible in tracebacks.
+do
+	local function inner() return debug.traceback() end
+	local function outer() return inner() end
+
+	local trace = outer()
+	assert(trace:find("tail call"), trace)
+end
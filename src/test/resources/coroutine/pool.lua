@@ -0,0 +1,37 @@
+-- Creates lots of short-lived coroutines, to ensure frames from finished ones are reused correctly.
+run(function()
+	local function range(n)
+		return coroutine.wrap(function()
+			for i = 1, n do coroutine.yield(i) end
+		end)
+	end
+
+	for n = 1, 20 do
+		local total = 0
+		for i in range(n) do
+			-- Nest a second generator, so stacks are released while another coroutine is running.
+			for j in range(i) do total = total + j end
+		end
+
+		local expected = 0
+		for i = 1, n do expected = expected + i * (i + 1) / 2 end
+		assertEquals(expected, total)
+	end
+
+	-- Coroutines may be resumed from their parent after they have finished, and fail.
+	local finished = coroutine.wrap(function() return 1 end)
+	assertEquals(1, finished())
+	local ok, err = pcall(finished)
+	assertEquals(false, ok)
+	assertEquals(true, err:find("cannot resume dead coroutine", 1, true) ~= nil)
+
+	-- Coroutines which error keep their stack, so it can be inspected.
+	local function broken() error("oh no") end
+	local co = coroutine.create(function() coroutine.yield() broken() end)
+	coroutine.resume(co)
+	assertEquals(false, (coroutine.resume(co)))
+	assertEquals("dead", coroutine.status(co))
+	assertEquals("table", type(debug.getinfo(co, 0, "S")))
+	for _ = 1, 10 do coroutine.wrap(function() coroutine.yield() end)() end
+	assertEquals("table", type(debug.getinfo(co, 0, "S")))
+end)
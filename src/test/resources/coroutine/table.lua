@@ -63,3 +63,23 @@ run(function()
 	assertEquals(13, x[3].x)
 	assertEquals(32, x[4].x)
 end)
+
+-- Test yielding while sorting larger tables, covering every stage of the sort
+run(function()
+	local x, expected = {}, {}
+	for i = 1, 100 do
+		local value = (i * 37) % 101
+		x[i], expected[i] = value, value
+	end
+	table.sort(expected)
+
+	table.sort(x, function(a, b)
+		local x, y = coroutine.yield(a, b)
+		assertEquals(a, x)
+		assertEquals(b, y)
+
+		return a < b
+	end)
+
+	for i = 1, 100 do assertEquals(expected[i], x[i]) end
+end)
@@ -0,0 +1,42 @@
+-- Appends to, and then drains, a list using the length operator. This stresses LuaTable.length(), especially once
+-- elements start being stored in the hash part.
+
+local n = tonumber((...)) or 200000
+
+local function fill(t, n)
+	for i = 1, n do t[#t + 1] = i end
+	return t
+end
+
+local function drain(t)
+	local total = 0
+	while #t > 0 do
+		total = total + t[#t]
+		t[#t] = nil
+	end
+	return total
+end
+
+local function insert(t, n)
+	local insert = table.insert
+	for i = 1, n do insert(t, i) end
+	return t
+end
+
+local function remove(t)
+	local remove, total = table.remove, 0
+	for _ = 1, #t do total = total + remove(t) end
+	return total
+end
+
+local expected = n * (n + 1) / 2
+for _ = 1, 5 do
+	assert(drain(fill({}, n)) == expected)
+	assert(remove(insert({}, n)) == expected)
+
+	-- Keys outside the array part force some entries into the hash part
+	local sparse = { [0] = 0, x = 1 }
+	assert(drain(fill(sparse, n)) == expected)
+end
+
+print(("Appended %d elements"):format(n))
@@ -0,0 +1,32 @@
+-- Fills large weak-keyed and weak-valued caches, dropping most of the entries. This stresses the creation and
+-- clearing of weak references within tables.
+
+local n = tonumber((...)) or 200000
+
+local function fill(mode)
+	local cache, keep = setmetatable({}, { __mode = mode }), {}
+	for i = 1, n do
+		local object = {}
+		if mode == "k" then cache[object] = i else cache[i] = object end
+		if i % 10 == 0 then keep[#keep + 1] = object end
+	end
+	return cache, keep
+end
+
+local function count(cache)
+	local count = 0
+	for _ in pairs(cache) do count = count + 1 end
+	return count
+end
+
+for _, mode in ipairs { "k", "v", "kv" } do
+	local cache, keep = fill(mode)
+	collectgarbage()
+	assert(count(cache) >= #keep)
+
+	-- Writing to the cache again should reuse the space taken by collected entries.
+	for i = 1, #keep do cache[keep[i]] = keep[i] end
+	assert(count(cache) >= #keep)
+end
+
+print(("Filled weak caches with %d elements"):format(n))